@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		debugging = Lib.test(dbgInt);
 	}
 
 	/**
@@ -119,16 +117,64 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Skip simulated time forward to just before the next pending interrupt,
+	 * so that the caller's next tick fires it. Meant for the idle thread,
+	 * which would otherwise yield once per tick until something happens.
+	 * Time is skipped in whole kernel ticks, so handlers run at the same
+	 * time and the same tick counts result as if the idle thread had spun.
+	 * 
+	 * <p>
+	 * Nothing is skipped if any handler has run since the previous call,
+	 * because it may have made a thread ready, and the idle thread has to
+	 * yield to it first. Interrupts must be enabled.
+	 * 
+	 * @return <tt>true</tt> if time was skipped.
+	 */
+	public boolean idle() {
+		Lib.assertTrue(enabled);
+
+		if (numHandlerRuns != idleHandlerRuns || numPending == 0) {
+			idleHandlerRuns = numHandlerRuns;
+			return false;
+		}
+
+		Stats stats = privilege.stats;
+		long wait = nextDeadline - stats.totalTicks;
+		if (wait <= Stats.KernelTick)
+			return false;
+
+		// all but the last tick, which fires the handlers
+		long skipped = (wait - 1) / Stats.KernelTick * Stats.KernelTick;
+		stats.kernelTicks += skipped;
+		stats.totalTicks += skipped;
+		return true;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		if (numPending == eventTime.length)
+			growQueue();
+
+		// sift the new event up from the end of the heap
+		int i = numPending++;
+		long id = numPendingInterruptsCreated++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!before(time, id, eventTime[parent], eventId[parent]))
+				break;
+			moveEvent(parent, i);
+			i = parent;
+		}
+		setEvent(i, time, id, type, handler);
+
+		nextDeadline = eventTime[0];
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -143,6 +189,12 @@ public final class Interrupt {
 			stats.totalTicks += Stats.UserTick;
 		}
 
+		// the common case: nothing is due
+		if (stats.totalTicks < nextDeadline && !debugging) {
+			enabled = true;
+			return;
+		}
+
 		if (Lib.test(dbgInt))
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
@@ -159,27 +211,24 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (nextDeadline > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		numHandlerRuns++;
 
-			Lib.assertTrue(next.time <= time);
+		while (nextDeadline <= time) {
+			String type = eventType[0];
+			Runnable handler = eventHandler[0];
+			removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,55 +239,119 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		// the heap is only partially ordered; sort a copy by (time, id)
+		Integer[] order = new Integer[numPending];
+		for (int i = 0; i < numPending; i++)
+			order[i] = Integer.valueOf(i);
+		Arrays.sort(order, new java.util.Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int i = a.intValue(), j = b.intValue();
+				if (i == j)
+					return 0;
+				return before(eventTime[i], eventId[i], eventTime[j], eventId[j]) ? -1 : 1;
+			}
+		});
+
+		for (int k = 0; k < numPending; k++) {
+			int i = order[k].intValue();
+			System.out.println("  " + eventType[i] + ", scheduled at "
+					+ eventTime[i]);
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
+	/**
+	 * Return <tt>true</tt> if an event at time <i>t1</i> with sequence number
+	 * <i>id1</i> must run before one at <i>t2</i> with <i>id2</i>. Events due
+	 * at the same time run in the order they were scheduled.
+	 */
+	private static boolean before(long t1, long id1, long t2, long id2) {
+		return t1 < t2 || (t1 == t2 && id1 < id2);
+	}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
+	private void setEvent(int i, long time, long id, String type,
+			Runnable handler) {
+		eventTime[i] = time;
+		eventId[i] = id;
+		eventType[i] = type;
+		eventHandler[i] = handler;
+	}
 
-		long time;
+	private void moveEvent(int from, int to) {
+		setEvent(to, eventTime[from], eventId[from], eventType[from],
+				eventHandler[from]);
+	}
 
-		String type;
+	/** Remove the earliest event, and update <tt>nextDeadline</tt>. */
+	private void removeFirst() {
+		int last = --numPending;
+		long time = eventTime[last], id = eventId[last];
+		String type = eventType[last];
+		Runnable handler = eventHandler[last];
+		eventType[last] = null;
+		eventHandler[last] = null;
+
+		if (last > 0) {
+			// sift the last event down from the root
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= last)
+					break;
+				if (child + 1 < last
+						&& before(eventTime[child + 1], eventId[child + 1],
+								eventTime[child], eventId[child]))
+					child++;
+				if (!before(eventTime[child], eventId[child], time, id))
+					break;
+				moveEvent(child, i);
+				i = child;
+			}
+			setEvent(i, time, id, type, handler);
+		}
 
-		Runnable handler;
+		nextDeadline = (numPending == 0) ? Long.MAX_VALUE : eventTime[0];
+	}
 
-		private long id;
+	private void growQueue() {
+		int size = eventTime.length * 2;
+		eventTime = Arrays.copyOf(eventTime, size);
+		eventId = Arrays.copyOf(eventId, size);
+		eventType = Arrays.copyOf(eventType, size);
+		eventHandler = Arrays.copyOf(eventHandler, size);
 	}
 
 	private long numPendingInterruptsCreated = 0;
 
+	/** Counts calls to checkIfDue() that invoked handlers, for idle(). */
+	private long numHandlerRuns = 0;
+
+	private long idleHandlerRuns = 0;
+
 	private Privilege privilege;
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/*
+	 * Pending interrupts, as a binary min-heap ordered by (time, id) and kept
+	 * in parallel arrays, so scheduling allocates nothing.
+	 */
+	private long[] eventTime = new long[16];
+	private long[] eventId = new long[16];
+	private String[] eventType = new String[16];
+	private Runnable[] eventHandler = new Runnable[16];
+	private int numPending = 0;
+
+	/**
+	 * The time of the earliest pending interrupt, or
+	 * <tt>Long.MAX_VALUE</tt> if there is none. <tt>tick()</tt> only has to
+	 * compare against this.
+	 */
+	private long nextDeadline = Long.MAX_VALUE;
+
+	/** Whether interrupt debugging was on when the machine started. */
+	private boolean debugging;
 
 	private static final char dbgInt = 'i';
 
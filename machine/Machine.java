@@ -312,6 +312,15 @@ public final class Machine {
 		return timer;
 	}
 
+	/**
+	 * Return the runtime statistics that will be printed when Nachos halts.
+	 * 
+	 * @return the runtime statistics.
+	 */
+	public static Stats stats() {
+		return stats;
+	}
+
 	/**
 	 * Return the hardware elevator bank.
 	 * 
@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -44,11 +47,37 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodedPages = new DecodedInstruction[numPhysPages][];
+		blockPages = new BasicBlock[numPhysPages][];
+
+		String engine = Config.getString("Processor.engine", "interpreter");
+		if (engine.equals("blocks"))
+			usingBlocks = true;
+		else if (engine.equals("interpreter"))
+			usingBlocks = false;
+		else
+			Lib.assertNotReached("bad value for Processor.engine: " + engine);
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+			usingASIDs = Config.getBoolean("Processor.tlbASIDs", false);
+
+			Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0,
+					"Processor.tlbWays must divide Processor.tlbSize");
+			tlbSets = tlbSize / tlbWays;
+			Lib.assertTrue(Integer.bitCount(tlbSets) == 1,
+					"the number of TLB sets must be a power of two");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			int indexSize = Integer.highestOneBit(tlbSize) * 4;
+			tlbIndexVPN = new int[indexSize];
+			tlbIndexASID = new int[indexSize];
+			tlbIndexSlot = new int[indexSize];
+			rebuildTLBIndex();
 		}
 		else {
 			translations = null;
@@ -93,7 +122,10 @@ public final class Processor {
 
 		while (true) {
 			try {
-				inst.run();
+				if (!usingBlocks || !runBlock(inst))
+					inst.run();
+				else
+					continue;
 			}
 			catch (MipsException e) {
 				e.handle();
@@ -103,6 +135,53 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Run the basic block starting at the current PC, advancing simulated time
+	 * after every instruction exactly as the interpreter does. The block stops
+	 * early if an interrupt handler runs, since the handler may switch
+	 * threads or change the address space, or if a store overwrites the
+	 * block's page.
+	 * 
+	 * <p>
+	 * A block can only be entered when the next PC follows the current PC, so
+	 * a branch delay slot reached from a taken branch is left to the
+	 * interpreter. Blocks are also not used while tracing instructions.
+	 * 
+	 * @param inst the instruction state used for operations that are not
+	 * specialized.
+	 * @return <tt>true</tt> if at least one instruction was run as part of a
+	 * block, or <tt>false</tt> if the next instruction must be interpreted.
+	 * @exception MipsException if an instruction in the block raised an
+	 * exception. Every instruction before it has been completed and ticked.
+	 */
+	private boolean runBlock(Instruction inst) throws MipsException {
+		int pc = registers[regPC];
+
+		if (registers[regNextPC] != pc + 4 || Lib.test(dbgProcessor)
+				|| Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			return false;
+
+		int paddr = translate(pc, 4, false);
+		int ppn = paddr / pageSize;
+
+		BasicBlock block = getBasicBlock(paddr);
+		long flushes = numPipeFlushes;
+		blockPage = ppn;
+
+		for (int i = 0; i < block.ops.length; i++) {
+			block.ops[i].run(inst);
+
+			privilege.interrupt.tick(false);
+
+			if (numPipeFlushes != flushes || blockPage != ppn)
+				break;
+		}
+
+		blockPage = -1;
+
+		return true;
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -186,6 +265,72 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the associativity of this processor's TLB. The TLB is divided
+	 * into <tt>getTLBSize() / getTLBWays()</tt> sets of this many entries, and
+	 * a translation for a given virtual page may only be placed in that page's
+	 * set. A fully associative TLB has a single set.
+	 * 
+	 * @return the number of entries in each TLB set.
+	 */
+	public int getTLBWays() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the TLB set that a translation for the specified virtual page
+	 * must be placed in. The set occupies TLB indices
+	 * <tt>set * getTLBWays()</tt> through <tt>set * getTLBWays() +
+	 * getTLBWays() - 1</tt>.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the TLB set for <i>vpn</i>.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return vpn & (tlbSets - 1);
+	}
+
+	/**
+	 * Test whether TLB entries are tagged with an address space ID. If so, an
+	 * entry only matches while its <tt>asid</tt> equals the ASID set by
+	 * <tt>setASID()</tt>, so entries belonging to different address spaces can
+	 * stay in the TLB at the same time.
+	 * 
+	 * @return <tt>true</tt> if the TLB uses address space IDs.
+	 */
+	public boolean hasASIDs() {
+		Lib.assertTrue(usingTLB);
+
+		return usingASIDs;
+	}
+
+	/**
+	 * Set the current address space ID. Ignored unless <tt>hasASIDs()</tt>.
+	 * 
+	 * @param asid the ID of the address space now running.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		currentASID = asid;
+	}
+
+	/**
+	 * Return the current address space ID, set by the last call to
+	 * <tt>setASID()</tt>.
+	 * 
+	 * @return the current address space ID.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return currentASID;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -199,12 +344,29 @@ public final class Processor {
 		return new TranslationEntry(translations[number]);
 	}
 
+	/**
+	 * Copy the specified TLB entry into an existing translation entry. Unlike
+	 * <tt>readTLBEntry(int)</tt>, this does not allocate a new object, so the
+	 * kernel can reuse one entry while scanning the TLB.
+	 * 
+	 * @param number the index into the TLB.
+	 * @param entry the translation entry to fill in.
+	 */
+	public void readTLBEntry(int number, TranslationEntry entry) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		copyEntry(translations[number], entry);
+	}
+
 	/**
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * A valid entry must be written to the set for its virtual page (see
+	 * <tt>getTLBSet()</tt>). Within that set the location of an entry does not
+	 * affect anything. By default the TLB is fully associative, so any index
+	 * may be used.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -212,8 +374,116 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid || number / tlbWays == getTLBSet(entry.vpn));
 
-		translations[number] = new TranslationEntry(entry);
+		// only valid entries are indexed, keyed on the vpn and ASID, so
+		// rewriting an entry's other fields leaves the index alone
+		TranslationEntry old = translations[number];
+		boolean rekeyed = (old.valid || entry.valid)
+				&& (old.valid != entry.valid || old.vpn != entry.vpn || (usingASIDs && old.asid != entry.asid));
+
+		copyEntry(entry, translations[number]);
+
+		if (rekeyed)
+			rebuildTLBIndex();
+	}
+
+	/**
+	 * Find the TLB entry for the specified virtual page in the specified
+	 * address space, using the same index as address translation, so the
+	 * kernel need not scan the whole TLB.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @param asid the address space ID, ignored unless <tt>hasASIDs()</tt>.
+	 * @return the index of the valid TLB entry, or -1 if there is none.
+	 */
+	public int findTLBEntry(int vpn, int asid) {
+		Lib.assertTrue(usingTLB);
+
+		int mask = tlbIndexSlot.length - 1;
+		if (!usingASIDs)
+			asid = 0;
+
+		for (int h = tlbIndexHash(vpn, asid) & mask; tlbIndexSlot[h] != -1; h = (h + 1)
+				& mask) {
+			if (tlbIndexVPN[h] == vpn && tlbIndexASID[h] == asid)
+				return tlbIndexSlot[h];
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Invalidate the specified TLB entry. Same as reading the entry, clearing
+	 * its valid bit, and writing it back, but without the copies.
+	 * 
+	 * @param number the index into the TLB.
+	 */
+	public void invalidateTLBEntry(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		if (translations[number].valid) {
+			translations[number].valid = false;
+			rebuildTLBIndex();
+		}
+	}
+
+	private static void copyEntry(TranslationEntry from, TranslationEntry to) {
+		to.vpn = from.vpn;
+		to.ppn = from.ppn;
+		to.valid = from.valid;
+		to.readOnly = from.readOnly;
+		to.used = from.used;
+		to.dirty = from.dirty;
+		to.asid = from.asid;
+	}
+
+	/**
+	 * Rebuild the vpn to TLB slot index from the current TLB contents. The
+	 * index is keyed on the vpn and, if the TLB uses them, the ASID, and uses
+	 * open addressing. If more than one valid entry has the same key, the
+	 * lowest slot wins, as it would in a linear search.
+	 */
+	private void rebuildTLBIndex() {
+		int mask = tlbIndexSlot.length - 1;
+
+		Arrays.fill(tlbIndexSlot, -1);
+
+		for (int i = 0; i < tlbSize; i++) {
+			if (!translations[i].valid)
+				continue;
+
+			int vpn = translations[i].vpn;
+			int asid = usingASIDs ? translations[i].asid : 0;
+			int h = tlbIndexHash(vpn, asid) & mask;
+			while (tlbIndexSlot[h] != -1
+					&& (tlbIndexVPN[h] != vpn || tlbIndexASID[h] != asid))
+				h = (h + 1) & mask;
+
+			if (tlbIndexSlot[h] == -1) {
+				tlbIndexVPN[h] = vpn;
+				tlbIndexASID[h] = asid;
+				tlbIndexSlot[h] = i;
+			}
+		}
+	}
+
+	private static int tlbIndexHash(int vpn, int asid) {
+		return vpn ^ (asid * 0x9E3779B1);
+	}
+
+	/**
+	 * Find the valid TLB entry for the specified virtual page in the current
+	 * address space.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the TLB entry, or <tt>null</tt> if there is none.
+	 */
+	private TranslationEntry lookupTLB(int vpn) {
+		int slot = findTLBEntry(vpn, currentASID);
+
+		return slot == -1 ? null : translations[slot];
 	}
 
 	/**
@@ -317,14 +587,9 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, find the TLB entry for the vpn through the index
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
+			entry = lookupTLB(vpn);
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
@@ -400,7 +665,74 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		// the rest of a running block may have been built from the words
+		// being overwritten; the caches themselves check each word against
+		// memory before reusing a decoded instruction or block
+		if (paddr / pageSize == blockPage)
+			blockPage = -1;
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+	}
+
+	/**
+	 * Return the decoded form of the instruction word at the specified
+	 * physical address, decoding it only if it is not already cached for that
+	 * page. The kernel may write physical memory directly (e.g. when loading a
+	 * page), so a cached entry is only used if it was decoded from the same
+	 * word that is now in memory.
+	 * 
+	 * @param paddr the physical address of the instruction.
+	 * @param value the instruction word at <i>paddr</i>.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction getDecodedInstruction(int paddr, int value) {
+		int ppn = paddr / pageSize;
+
+		DecodedInstruction[] page = decodedPages[ppn];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize / 4];
+			decodedPages[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		DecodedInstruction decoded = page[index];
+		if (decoded == null || decoded.value != value) {
+			decoded = new DecodedInstruction(value);
+			page[index] = decoded;
+		}
+
+		return decoded;
+	}
+
+	/**
+	 * Return the basic block starting at the specified physical address,
+	 * building it if it is not already cached or if the memory it was built
+	 * from has changed.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the basic block.
+	 */
+	private BasicBlock getBasicBlock(int paddr) {
+		int ppn = paddr / pageSize;
+
+		BasicBlock[] page = blockPages[ppn];
+		if (page == null) {
+			page = new BasicBlock[pageSize / 4];
+			blockPages[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		BasicBlock block = page[index];
+		if (block == null || !block.matches(paddr)) {
+			block = new BasicBlock(paddr);
+			page[index] = block;
+		}
+
+		return block;
 	}
 
 	/**
@@ -550,12 +882,30 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbWays;
+
+	/** Number of TLB sets. Always a power of two. */
+	private int tlbSets;
+
+	/** <tt>true</tt> if TLB entries are tagged with an address space ID. */
+	private boolean usingASIDs;
+
+	/** The address space ID that TLB entries must match. */
+	private int currentASID = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/**
+	 * Index from virtual page number to TLB slot, covering only valid TLB
+	 * entries. <tt>tlbIndexSlot</tt> holds -1 for an empty bucket.
+	 */
+	private int[] tlbIndexVPN, tlbIndexASID, tlbIndexSlot;
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -568,6 +918,35 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Decoded instructions, indexed by physical page number and then by word
+	 * offset within the page. An entry is replaced when the word it was
+	 * decoded from changes.
+	 */
+	private DecodedInstruction[][] decodedPages;
+
+	/**
+	 * Basic blocks, indexed by the physical page number and word offset of
+	 * their first instruction. A block is rebuilt when any word it was built
+	 * from changes.
+	 */
+	private BasicBlock[][] blockPages;
+
+	/**
+	 * The physical page of the block being run, or -1. A store to that page
+	 * resets it, ending the block.
+	 */
+	private int blockPage = -1;
+
+	/** <tt>true</tt> if running straight-line code as basic blocks. */
+	private boolean usingBlocks;
+
+	/**
+	 * The number of times the pipeline has been flushed for an interrupt
+	 * handler. A running block checks this after every tick.
+	 */
+	private long numPipeFlushes = 0;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -580,6 +959,7 @@ public final class Processor {
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			numPipeFlushes++;
 		}
 	}
 
@@ -641,78 +1021,54 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			// the debug path goes through readMem() so its trace is unchanged
+			if (Lib.test(dbgProcessor)) {
+				value = readMem(registers[regPC], 4);
+				decoded = new DecodedInstruction(value);
+				return;
+			}
+
+			int paddr = translate(registers[regPC], 4, false);
+			value = Lib.bytesToInt(mainMemory, paddr);
+			decoded = getDecodedInstruction(paddr, value);
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			DecodedInstruction d = decoded;
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			op = d.op;
+			rs = d.rs;
+			rt = d.rt;
+			rd = d.rd;
+			sh = d.sh;
+			func = d.func;
+			target = d.target;
+			imm = d.imm;
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			operation = d.operation;
+			name = d.name;
+			format = d.format;
+			flags = d.flags;
+
+			size = d.size;
+			dstReg = d.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + d.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1068,6 +1424,8 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
+		DecodedInstruction decoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1085,6 +1443,372 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * A run of straight-line instructions within one physical page. A block
+	 * ends after the delay slot of its first branch or jump, at a syscall or
+	 * illegal instruction, or at the end of the page. Each instruction is
+	 * compiled into an operation that does the work of <tt>decode()</tt>,
+	 * <tt>execute()</tt> and <tt>writeBack()</tt> for that particular
+	 * instruction.
+	 */
+	private class BasicBlock {
+		BasicBlock(int paddr) {
+			ArrayList<BlockOp> list = new ArrayList<BlockOp>();
+
+			int end = (paddr / pageSize + 1) * pageSize;
+			boolean delaySlot = false;
+
+			for (int addr = paddr; addr < end; addr += 4) {
+				DecodedInstruction decoded = getDecodedInstruction(addr,
+						Lib.bytesToInt(mainMemory, addr));
+				list.add(compile(decoded));
+
+				if (delaySlot)
+					break;
+
+				int operation = decoded.operation;
+				if (Lib.test(Mips.BRANCH, decoded.flags))
+					delaySlot = true;
+				else if (operation == Mips.SYSCALL
+						|| operation == Mips.INVALID
+						|| operation == Mips.UNIMPL)
+					break;
+			}
+
+			ops = list.toArray(new BlockOp[list.size()]);
+
+			words = new int[ops.length];
+			for (int i = 0; i < ops.length; i++)
+				words[i] = Lib.bytesToInt(mainMemory, paddr + i * 4);
+		}
+
+		/**
+		 * Test whether physical memory still holds the words this block was
+		 * built from.
+		 */
+		boolean matches(int paddr) {
+			for (int i = 0; i < words.length; i++) {
+				if (Lib.bytesToInt(mainMemory, paddr + i * 4) != words[i])
+					return false;
+			}
+
+			return true;
+		}
+
+		final BlockOp[] ops;
+
+		final int[] words;
+	}
+
+	/**
+	 * Compile a decoded instruction into a block operation. The most common
+	 * instructions get a specialized operation; the rest are run through the
+	 * interpreter's <tt>Instruction</tt>, minus the fetch.
+	 */
+	private BlockOp compile(final DecodedInstruction d) {
+		final int rs = d.rs, rt = d.rt, imm = d.imm, sh = d.sh;
+		final int dstReg = d.dstReg;
+		final boolean immediate = Lib.test(Mips.SRC2IMM, d.flags);
+		final boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+		final boolean shiftAmount = Lib.test(Mips.SRC1SH, d.flags);
+
+		switch (d.operation) {
+		case Mips.ADD:
+			if (Lib.test(Mips.OVERFLOW, d.flags))
+				break;
+			if (immediate) {
+				return new AluOp(dstReg) {
+					int compute() {
+						return registers[rs] + imm;
+					}
+				};
+			}
+			return new AluOp(dstReg) {
+				int compute() {
+					return registers[rs] + registers[rt];
+				}
+			};
+
+		case Mips.SUB:
+			if (Lib.test(Mips.OVERFLOW, d.flags))
+				break;
+			return new AluOp(dstReg) {
+				int compute() {
+					return registers[rs] - registers[rt];
+				}
+			};
+
+		case Mips.AND:
+			if (immediate) {
+				return new AluOp(dstReg) {
+					int compute() {
+						return registers[rs] & imm;
+					}
+				};
+			}
+			return new AluOp(dstReg) {
+				int compute() {
+					return registers[rs] & registers[rt];
+				}
+			};
+
+		case Mips.OR:
+			if (immediate) {
+				return new AluOp(dstReg) {
+					int compute() {
+						return registers[rs] | imm;
+					}
+				};
+			}
+			return new AluOp(dstReg) {
+				int compute() {
+					return registers[rs] | registers[rt];
+				}
+			};
+
+		case Mips.XOR:
+			if (immediate) {
+				return new AluOp(dstReg) {
+					int compute() {
+						return registers[rs] ^ imm;
+					}
+				};
+			}
+			return new AluOp(dstReg) {
+				int compute() {
+					return registers[rs] ^ registers[rt];
+				}
+			};
+
+		case Mips.NOR:
+			return new AluOp(dstReg) {
+				int compute() {
+					return ~(registers[rs] | registers[rt]);
+				}
+			};
+
+		case Mips.LUI:
+			return new AluOp(dstReg) {
+				int compute() {
+					return imm << 16;
+				}
+			};
+
+		// shifts are done on the sign-extended 64-bit value, as in execute()
+		case Mips.SLL:
+			if (shiftAmount) {
+				return new AluOp(dstReg) {
+					int compute() {
+						return (int) ((long) registers[rt] << sh);
+					}
+				};
+			}
+			return new AluOp(dstReg) {
+				int compute() {
+					return (int) ((long) registers[rt] << (registers[rs] & 0x1F));
+				}
+			};
+
+		case Mips.SRA:
+			if (shiftAmount) {
+				return new AluOp(dstReg) {
+					int compute() {
+						return (int) ((long) registers[rt] >> sh);
+					}
+				};
+			}
+			return new AluOp(dstReg) {
+				int compute() {
+					return (int) ((long) registers[rt] >> (registers[rs] & 0x1F));
+				}
+			};
+
+		case Mips.SRL:
+			if (shiftAmount) {
+				return new AluOp(dstReg) {
+					int compute() {
+						return (int) ((long) registers[rt] >>> sh);
+					}
+				};
+			}
+			return new AluOp(dstReg) {
+				int compute() {
+					return (int) ((long) registers[rt] >>> (registers[rs] & 0x1F));
+				}
+			};
+
+		case Mips.SLT:
+			if (unsigned) {
+				return new AluOp(dstReg) {
+					int compute() {
+						long src2 = immediate ? imm : registers[rt];
+						return ((registers[rs] & 0xFFFFFFFFL) < (src2 & 0xFFFFFFFFL)) ? 1
+								: 0;
+					}
+				};
+			}
+			return new AluOp(dstReg) {
+				int compute() {
+					int src2 = immediate ? imm : registers[rt];
+					return (registers[rs] < src2) ? 1 : 0;
+				}
+			};
+
+		case Mips.MFLO:
+			return new AluOp(dstReg) {
+				int compute() {
+					return registers[regLo];
+				}
+			};
+
+		case Mips.MFHI:
+			return new AluOp(dstReg) {
+				int compute() {
+					return registers[regHi];
+				}
+			};
+
+		case Mips.LOAD:
+			final int loadSize = d.size;
+			return new BlockOp() {
+				void run(Instruction inst) throws MipsException {
+					int value = readMem(registers[rs] + imm, loadSize);
+					if (!unsigned)
+						value = Lib.extend(value, 0, loadSize * 8);
+
+					delayedLoad(dstReg, value, 0xFFFFFFFF);
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+
+		case Mips.STORE:
+			final int storeSize = d.size;
+			return new BlockOp() {
+				void run(Instruction inst) throws MipsException {
+					writeMem(registers[rs] + imm, storeSize, registers[rt]);
+
+					finishLoad();
+					advancePC(registers[regNextPC] + 4);
+				}
+			};
+		}
+
+		return new BlockOp() {
+			void run(Instruction inst) throws MipsException {
+				inst.value = d.value;
+				inst.decoded = d;
+				inst.decode();
+				inst.execute();
+				inst.writeBack();
+			}
+		};
+	}
+
+	/** A single compiled instruction within a basic block. */
+	private abstract class BlockOp {
+		abstract void run(Instruction inst) throws MipsException;
+	}
+
+	/**
+	 * A compiled register-writing instruction that cannot raise an exception.
+	 * The operands are read before the pending delayed load completes, as in
+	 * the interpreter.
+	 */
+	private abstract class AluOp extends BlockOp {
+		AluOp(int dstReg) {
+			this.dstReg = dstReg;
+		}
+
+		abstract int compute();
+
+		void run(Instruction inst) {
+			int result = compute();
+
+			finishLoad();
+			if (dstReg != 0)
+				registers[dstReg] = result;
+
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private final int dstReg;
+	}
+
+	/**
+	 * The decoded form of a single instruction word. Everything here depends
+	 * only on the instruction word itself, so it can be computed once and
+	 * reused every time the word is executed.
+	 */
+	private static class DecodedInstruction {
+		DecodedInstruction(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch offsets use the sign-extended immediate
+			int extended = Lib.extend(value, 0, 16);
+			branchOffset = extended << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = extended & 0xFFFF;
+			else
+				imm = extended;
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg, branchOffset;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -26,6 +26,25 @@ public final class Stats {
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		if (numSwapReads + numSwapWrites + numPrefetches > 0) {
+			System.out.println("Swap: reads " + numSwapReads + " (" + numSwapReadOps
+					+ " ops), writes " + numSwapWrites + " (" + numSwapWriteOps
+					+ " ops, " + numPagesCleaned + " by the cleaner), read-ahead " + numPrefetches + " pages, "
+					+ numPrefetchHits + " hits ("
+					+ (numPrefetches == 0 ? 0 : 100 * numPrefetchHits / numPrefetches)
+					+ "%)");
+		}
+		if (numZeroFills > 0) {
+			System.out.println("Zero fill: pages " + numZeroFills + ", "
+					+ numPrezeroedFills + " from pre-zeroed frames");
+		}
+		if (numPagesCopied > 0) {
+			System.out.println("Copy-on-write: pages copied " + numPagesCopied);
+		}
+		if (numMappedReads + numMappedWrites > 0) {
+			System.out.println("Mapped files: reads " + numMappedReads
+					+ ", writes " + numMappedWrites);
+		}
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -63,6 +82,42 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of pages read back from swap. */
+	public int numSwapReads = 0;
+
+	/** The number of swap reads issued; a clustered read counts once. */
+	public int numSwapReadOps = 0;
+
+	/** The total number of pages written out to swap. */
+	public int numSwapWrites = 0;
+
+	/** The number of swap writes issued; a clustered write counts once. */
+	public int numSwapWriteOps = 0;
+
+	/** The number of pages written back ahead of eviction by the page cleaner. */
+	public int numPagesCleaned = 0;
+
+	/** The total number of pages brought in ahead of a fault. */
+	public int numPrefetches = 0;
+
+	/** The number of prefetched pages that were used before eviction. */
+	public int numPrefetchHits = 0;
+
+	/** The total number of demand-zero pages given a frame on a fault. */
+	public int numZeroFills = 0;
+
+	/** The number of demand-zero faults served by a frame zeroed while idle. */
+	public int numPrezeroedFills = 0;
+
+	/** The number of pages shared after a fork that were copied on a write. */
+	public int numPagesCopied = 0;
+
+	/** The total number of pages of mapped files read in on a fault. */
+	public int numMappedReads = 0;
+
+	/** The total number of dirty pages written back to mapped files. */
+	public int numMappedWrites = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
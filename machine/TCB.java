@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,17 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * The <tt>TCB.backend</tt> key selects how TCBs are implemented.
+ * <tt>monitor</tt> (the default) hands off between platform threads with
+ * <tt>wait</tt>/<tt>notify</tt>. <tt>park</tt> hands off with
+ * <tt>LockSupport.park</tt>/<tt>unpark</tt>, which skips the monitor.
+ * <tt>virtual</tt> also hands off by parking, but backs each TCB with a JVM
+ * virtual thread when the JVM provides them, so very many TCBs can exist
+ * without exhausting OS threads. On older JVMs it falls back to
+ * <tt>park</tt>. <tt>TCB.maxThreads</tt> overrides the limit on started
+ * TCBs.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +52,37 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String backend = Config.getString("TCB.backend", "monitor");
+		Lib.assertTrue(backend.equals("monitor") || backend.equals("park")
+				|| backend.equals("virtual"));
+		parking = !backend.equals("monitor");
+		if (backend.equals("virtual"))
+			virtualBuilder = findVirtualThreadBuilder();
+
+		threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+		Lib.assertTrue(threadLimit > 0);
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual()</tt> and
+	 * <tt>Thread.Builder.unstarted()</tt>, which only exist from Java 21 on.
+	 * Reflection keeps this class loadable on older JVMs.
+	 * 
+	 * @return the virtual thread builder, or <tt>null</tt> if the JVM has no
+	 * virtual threads.
+	 */
+	private static Object findVirtualThreadBuilder() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod(
+					"unstarted", Runnable.class);
+			return builder;
+		}
+		catch (Exception e) {
+			System.out.print(" (no virtual threads, parking platform threads)");
+			return null;
+		}
 	}
 
 	/**
@@ -68,7 +112,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +146,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -216,6 +260,18 @@ public final class TCB {
 		return (currentTCB != null && Thread.currentThread() == currentTCB.javaThread);
 	}
 
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualBuilder != null) {
+			try {
+				return (Thread) unstarted.invoke(virtualBuilder, target);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("could not create virtual thread: " + e);
+			}
+		}
+		return new Thread(target);
+	}
+
 	private void threadroot() {
 		// this should be running the current thread
 		Lib.assertTrue(javaThread == Thread.currentThread());
@@ -298,7 +354,18 @@ public final class TCB {
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (parking) {
+			// park() may return spuriously, so the flag decides
+			while (!running)
+				LockSupport.park(this);
+		}
+		else {
+			waitOnMonitor();
+		}
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -314,7 +381,17 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (parking) {
+			running = true;
+			LockSupport.unpark(javaThread);
+		}
+		else {
+			notifyMonitor();
+		}
+	}
+
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -346,6 +423,25 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The limit actually enforced: <tt>TCB.maxThreads</tt> if set, else
+	 * <tt>maxThreads</tt>.
+	 */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * <tt>true</tt> if TCBs hand off with <tt>LockSupport</tt> instead of the
+	 * per-TCB monitor.
+	 */
+	private static boolean parking = false;
+
+	/**
+	 * The JVM's virtual thread builder and its <tt>unstarted()</tt> method,
+	 * or <tt>null</tt> if TCBs are backed by platform threads.
+	 */
+	private static Object virtualBuilder = null;
+	private static Method unstarted = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -401,9 +497,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile so that, when parking, setting it publishes
+	 * everything the waking TCB did before the handoff.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
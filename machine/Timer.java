@@ -31,6 +31,12 @@ public final class Timer {
 			}
 		};
 
+		oneShotInterrupt = new Runnable() {
+			public void run() {
+				oneShotInterrupt();
+			}
+		};
+
 		autoGraderInterrupt = new Runnable() {
 			public void run() {
 				Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -51,6 +57,39 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Set the callback to use for one-shot interrupts requested with
+	 * <tt>scheduleOneShot()</tt>.
+	 * 
+	 * @param handler the one-shot interrupt handler.
+	 */
+	public void setOneShotHandler(Runnable handler) {
+		this.oneShotHandler = handler;
+	}
+
+	/**
+	 * Request a one-shot interrupt at the specified time, in addition to the
+	 * periodic ones. Only the earliest outstanding request is kept: a request
+	 * for a later time than one already pending is ignored, and an earlier
+	 * one replaces it. Times that have already passed fire on the next tick.
+	 * 
+	 * @param time the time, in clock ticks since Nachos started, at which to
+	 * call the one-shot handler.
+	 */
+	public void scheduleOneShot(long time) {
+		long now = getTime();
+		if (time <= now)
+			time = now + 1;
+
+		if (oneShotPending && oneShotTime <= time)
+			return;
+
+		oneShotPending = true;
+		oneShotTime = time;
+		privilege.interrupt.schedule(time - now, "one-shot timer",
+				oneShotInterrupt);
+	}
+
 	/**
 	 * Get the current time.
 	 * 
@@ -70,6 +109,17 @@ public final class Timer {
 			handler.run();
 	}
 
+	private void oneShotInterrupt() {
+		// a request replaced by an earlier one still has its interrupt queued
+		if (!oneShotPending || getTime() < oneShotTime)
+			return;
+
+		oneShotPending = false;
+
+		if (oneShotHandler != null)
+			oneShotHandler.run();
+	}
+
 	private void scheduleInterrupt() {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
@@ -90,4 +140,12 @@ public final class Timer {
 	private Privilege privilege;
 
 	private Runnable handler = null;
+
+	private Runnable oneShotInterrupt;
+
+	private Runnable oneShotHandler = null;
+
+	private boolean oneShotPending = false;
+
+	private long oneShotTime;
 }
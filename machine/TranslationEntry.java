@@ -48,6 +48,7 @@ public final class TranslationEntry {
 		readOnly = entry.readOnly;
 		used = entry.used;
 		dirty = entry.dirty;
+		asid = entry.asid;
 	}
 
 	/** The virtual page number. */
@@ -78,4 +79,13 @@ public final class TranslationEntry {
 	 * user program.
 	 */
 	public boolean dirty;
+
+	/**
+	 * The address space this translation belongs to. Only used by a TLB with
+	 * address-space-ID tagging, where an entry only matches while the
+	 * processor's current ASID is equal to this value.
+	 * 
+	 * @see nachos.machine.Processor#setASID
+	 */
+	public int asid;
 }
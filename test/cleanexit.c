@@ -0,0 +1,51 @@
+/* cleanexit.c
+ *	Test program for processes exiting while the page cleaner runs.
+ *
+ *	Starts several copies of itself at once. Each dirties more pages
+ *	than fit in memory, so the cleaner is busy writing them out, and
+ *	exits as soon as it is done. Run it on its own, with the page
+ *	cleaner on: when the last process exits, VMKernel checks that no
+ *	swap slot is left allocated. Returns 0 if every child succeeded.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define Children	4
+#define Size	4096	/* 16 pages */
+
+int data[Size];
+
+int
+main(int argc, char *argv[])
+{
+    int pids[Children];
+    char *args[2];
+    int i, status, failed;
+
+    if (argc > 1) {
+	/* child: dirty every page, then leave while they are written */
+	for (i = 0; i < Size; i++)
+	    data[i] = i;
+	exit(0);
+    }
+
+    args[0] = "cleanexit.coff";
+    args[1] = "child";
+    for (i = 0; i < Children; i++)
+	pids[i] = exec("cleanexit.coff", 2, args);
+
+    failed = 0;
+    for (i = 0; i < Children; i++) {
+	if (pids[i] == -1 || join(pids[i], &status) != 1 || status != 0)
+	    failed++;
+    }
+
+    if (failed != 0) {
+	printf("%d children failed\n", failed);
+	return 1;
+    }
+
+    printf("clean exit test passed\n");
+    return 0;
+}
@@ -0,0 +1,85 @@
+/* forktest.c
+ *	Test program for fork() and copy-on-write.
+ *
+ *	Parent and child each overwrite arrays they shared at the fork, in
+ *	initialized data and in uninitialized data, and check that neither
+ *	sees the other's writes. Both also read on from a file they shared
+ *	at the fork, which each must do from its own position. Returns 0 if
+ *	all is well.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define Size	2048	/* several pages, so some are swapped out */
+
+int data[Size];
+int initialized[8] = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+int
+check(int scale)
+{
+    int i;
+
+    for (i = 0; i < Size; i++)
+	if (data[i] != i * scale)
+	    return 0;
+    return 1;
+}
+
+void
+fill(int scale)
+{
+    int i;
+
+    for (i = 0; i < Size; i++)
+	data[i] = i * scale;
+}
+
+int
+main()
+{
+    int pid, status, fd;
+    char c;
+
+    fill(1);
+
+    fd = open("forktest.c");
+    read(fd, &c, 1);
+
+    pid = fork();
+    if (pid == -1) {
+	printf("fork failed\n");
+	return 1;
+    }
+
+    if (pid == 0) {
+	/* child: sees the memory as it was at the fork */
+	if (!check(1) || initialized[7] != 8)
+	    exit(2);
+	fill(3);
+	initialized[7] = 0;
+	if (!check(3))
+	    exit(3);
+
+	/* the parent's reads must not move our position */
+	read(fd, &c, 1);
+	exit(c == '*' ? 0 : 4);
+    }
+
+    fill(2);
+    initialized[7] = 9;
+    read(fd, &c, 1);
+
+    if (join(pid, &status) != 1 || status != 0) {
+	printf("child failed: %d\n", status);
+	return 1;
+    }
+    if (!check(2) || initialized[7] != 9) {
+	printf("parent sees the child's writes\n");
+	return 1;
+    }
+
+    printf("fork test passed\n");
+    return 0;
+}
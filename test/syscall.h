@@ -25,6 +25,12 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallPread		15
+#define syscallPwrite		16
+#define syscallMunmap		17
+#define syscallFork		18
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +115,18 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current one and runs on from
+ * the same point: the parent's memory, its open files and its mappings as
+ * they are at the call. The two share memory pages until one of them writes
+ * a page, which then gets its own copy. A file open in both has a separate
+ * position in each. The parent may join() the child.
+ *
+ * Returns the child's process ID in the parent and 0 in the child, or -1 if
+ * the child could not be created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -181,6 +199,43 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * A buffer for readv() and writev(): iov_len bytes starting at iov_base.
+ */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Like read(), but scatter the data into the iovcnt buffers described by
+ * iov, filling each completely before moving on to the next. Stops early if
+ * a buffer could not be filled. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes read, or -1 on error, as for read().
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but gather the data from the iovcnt buffers described by
+ * iov, in order, with a single system call. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes written, or -1 on error, as for write().
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like read(), but read starting at byte offset of the file, and leave the
+ * file position unchanged. Fails with -1 on streams, which have no position.
+ */
+int pread(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Like write(), but write starting at byte offset of the file, and leave the
+ * file position unchanged. Fails with -1 on streams, which have no position.
+ */
+int pwrite(int fileDescriptor, void *buffer, int count, int offset);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -215,18 +270,28 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Map length bytes of the file referenced by fileDescriptor, starting at byte
+ * offset, into memory. offset must be a multiple of the page size. The kernel
+ * picks the address, above the stack; pages are read from the file only when
+ * first touched. At most 1024 pages may be mapped at once.
+ *
+ * The mapping stays valid after fileDescriptor is closed. Changes made
+ * through it are written back to the file when a page is evicted, when it is
+ * unmapped, and when the process exits. The file is never extended: bytes
+ * mapped past its end read as zero, and changes to them are lost.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Returns the address of the mapping, or -1 if an error occurred.
+ */
+void *mmap(int fileDescriptor, int offset, int length);
+
+/**
+ * Remove the mappings of the pages in the length bytes starting at address,
+ * which must be a multiple of the page size, writing changed pages back to
+ * their files. Pages in the range that are not mapped are ignored.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns 0 on success, or -1 if the range is invalid.
  */
-int mmap(int fileDescriptor, char *address);
+int munmap(void *address, int length);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
@@ -9,7 +9,8 @@ import java.util.*;
  */
 public class Alarm {
 
-	private List<AlarmThread> queue;
+	/** Sleeping threads, earliest wake time first. */
+	private PriorityQueue<AlarmThread> queue;
 
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
@@ -19,43 +20,58 @@ public class Alarm {
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
-		queue = new ArrayList<AlarmThread>();
+		queue = new PriorityQueue<AlarmThread>();
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
 			}
 		});
+		Machine.timer().setOneShotHandler(new Runnable() {
+			public void run() {
+				wakeExpired();
+			}
+		});
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
 	 * periodically (approximately every 500 clock ticks). Causes the current
 	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * should be run, once the scheduler says its time slice is over.
 	 */
 	public void timerInterrupt() {
 		Lib.assertTrue(Machine.interrupt().disabled());
-		List newlist = new ArrayList<AlarmThread>();
-    			for(AlarmThread at : queue){
-        			if(Machine.timer().getTime() >= at.time)
-				{
-					at.thread.ready();
-				}else{
-					newlist.add(at);
-				}
-    			}
-			this.queue = newlist;
+		wakeExpired();
 		
-		KThread.currentThread().yield();
+		if (ThreadedKernel.scheduler.timeSliceExpired(KThread.currentThread()))
+			KThread.currentThread().yield();
+	}
+
+	/**
+	 * Move every thread whose wake time has come to the ready set, then arm
+	 * the timer's one-shot interrupt for the next wake time, so sleepers wake
+	 * on time rather than at the next periodic interrupt.
+	 */
+	private void wakeExpired() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		long now = Machine.timer().getTime();
+		while(!queue.isEmpty() && queue.peek().time <= now)
+		{
+			queue.poll().thread.ready();
+		}
+		if(!queue.isEmpty())
+		{
+			Machine.timer().scheduleOneShot(queue.peek().time);
+		}
 	}
 
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
-	 * in the timer interrupt handler. The thread must be woken up (placed in
-	 * the scheduler ready set) during the first timer interrupt where
+	 * in a timer interrupt handler. The thread is woken up (placed in the
+	 * scheduler ready set) by the interrupt at
 	 * 
 	 * <p>
-	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
+	 * <blockquote> (current time) = (WaitUntil called time)+(x) </blockquote>
 	 * 
 	 * @param x the minimum number of clock ticks to wait.
 	 * 
@@ -64,11 +80,15 @@ public class Alarm {
 	public void waitUntil(long x) {
 		if(x > 0)
 		{
-			Machine.interrupt().disable();
+			boolean intStatus = Machine.interrupt().disable();
 			AlarmThread newAlarmThread = new AlarmThread(KThread.currentThread(), Machine.timer().getTime() + x);
 			queue.add(newAlarmThread);
+			if(queue.peek() == newAlarmThread)
+			{
+				Machine.timer().scheduleOneShot(newAlarmThread.time);
+			}
 			KThread.sleep();
-			Machine.interrupt().enable();
+			Machine.interrupt().restore(intStatus);
 		}
 
 		// KThread waitingThread = KThread.createIdleThread();
@@ -79,15 +99,33 @@ public class Alarm {
 		//	KThread.yield();
 	}
 
-	public class AlarmThread
+	public class AlarmThread implements Comparable<AlarmThread>
 	{
 		public KThread thread;
 		public long time;
+		/* breaks ties so equal wake times wake in the order they slept */
+		private long sequence;
 		
 		public AlarmThread(KThread thread, long time)
 		{
 			this.thread = thread;
 			this.time = time;
+			this.sequence = numSleeps++;
 		} 
+
+		public int compareTo(AlarmThread other)
+		{
+			if(time != other.time)
+			{
+				return time < other.time ? -1 : 1;
+			}
+			if(sequence != other.sequence)
+			{
+				return sequence < other.sequence ? -1 : 1;
+			}
+			return 0;
+		}
 	}
+
+	private long numSleeps = 0;
 }
@@ -0,0 +1,191 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A synchronized first-in first-out queue of fixed capacity, kept in a ring
+ * buffer. Producers wait while it is full and consumers while it is empty.
+ *
+ * <p>
+ * The batch operations move as many elements as they can each time they
+ * hold the lock, so a producer and consumer exchanging many elements switch
+ * far less often than with one element at a time.
+ */
+public class BoundedBuffer<T> {
+	/**
+	 * Allocate a new bounded buffer.
+	 *
+	 * @param capacity the most elements the buffer holds at once.
+	 */
+	public BoundedBuffer(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		items = new Object[capacity];
+		lock = new Lock();
+		notEmpty = new Condition(lock);
+		notFull = new Condition(lock);
+	}
+
+	/**
+	 * Add an element at the end of the buffer, waiting for room if the
+	 * buffer is full.
+	 *
+	 * @param item the element to add. Must not be <tt>null</tt>.
+	 */
+	public void put(T item) {
+		Lib.assertTrue(item != null);
+
+		lock.acquire();
+		while (count == items.length)
+			notFull.sleep();
+		items[(head + count) % items.length] = item;
+		count++;
+		wakeOthers();
+		lock.release();
+	}
+
+	/**
+	 * Add every element of <i>batch</i>, in order, waiting for room as often
+	 * as needed. Elements of concurrent calls may interleave.
+	 *
+	 * @param batch the elements to add. None may be <tt>null</tt>.
+	 */
+	public void putAll(T[] batch) {
+		lock.acquire();
+		int pos = 0;
+		while (pos < batch.length) {
+			while (count == items.length)
+				notFull.sleep();
+			while (pos < batch.length && count < items.length) {
+				Lib.assertTrue(batch[pos] != null);
+				items[(head + count) % items.length] = batch[pos++];
+				count++;
+			}
+			wakeOthers();
+		}
+		lock.release();
+	}
+
+	/**
+	 * Remove the element at the front of the buffer, waiting for one if the
+	 * buffer is empty.
+	 *
+	 * @return the element removed.
+	 */
+	@SuppressWarnings("unchecked")
+	public T take() {
+		lock.acquire();
+		while (count == 0)
+			notEmpty.sleep();
+		T item = (T) items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		count--;
+		wakeOthers();
+		lock.release();
+
+		return item;
+	}
+
+	/**
+	 * Wait for at least one element, then remove as many as are present, up
+	 * to the length of <i>out</i>.
+	 *
+	 * @param out the array to receive the elements, from index 0.
+	 * @return the number of elements removed.
+	 */
+	public int takeAll(T[] out) {
+		if (out.length == 0)
+			return 0;
+
+		lock.acquire();
+		while (count == 0)
+			notEmpty.sleep();
+		int n = 0;
+		while (n < out.length && count > 0) {
+			@SuppressWarnings("unchecked")
+			T item = (T) items[head];
+			out[n++] = item;
+			items[head] = null;
+			head = (head + 1) % items.length;
+			count--;
+		}
+		wakeOthers();
+		lock.release();
+
+		return n;
+	}
+
+	/**
+	 * Return the number of elements in the buffer. The value may be stale as
+	 * soon as it is returned.
+	 *
+	 * @return the number of elements in the buffer.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Test that elements come out in the order they went in, with a producer
+	 * using both <tt>put()</tt> and <tt>putAll()</tt> against a consumer using
+	 * both <tt>take()</tt> and <tt>takeAll()</tt>, and the buffer filling up.
+	 */
+	public static void selfTest() {
+		final BoundedBuffer<Integer> buffer = new BoundedBuffer<Integer>(3);
+		final int count = 20;
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < count;) {
+					if (i % 2 == 0) {
+						buffer.put(i++);
+						continue;
+					}
+					Integer[] batch = new Integer[Math.min(5, count - i)];
+					for (int j = 0; j < batch.length; j++)
+						batch[j] = i++;
+					buffer.putAll(batch);
+				}
+			}
+		}).setName("buffer producer");
+
+		producer.fork();
+
+		Integer[] out = new Integer[2];
+		int expected = 0;
+		while (expected < count) {
+			if (expected % 3 == 0) {
+				Lib.assertTrue(buffer.take() == expected++);
+				continue;
+			}
+			int n = buffer.takeAll(out);
+			Lib.assertTrue(n > 0);
+			for (int j = 0; j < n; j++)
+				Lib.assertTrue(out[j] == expected++);
+		}
+
+		producer.join();
+		Lib.assertTrue(buffer.size() == 0);
+	}
+
+	/**
+	 * After a change, wake one waiter on each side that can now make
+	 * progress. Each woken thread in turn wakes the next, so a batch that
+	 * frees or fills several slots reaches every waiter that can use them.
+	 */
+	private void wakeOthers() {
+		if (count > 0)
+			notEmpty.wake();
+		if (count < items.length)
+			notFull.wake();
+	}
+
+	private Object[] items;
+	private int head = 0;
+	private int count = 0;
+
+	private Lock lock;
+	private Condition notEmpty;
+	private Condition notFull;
+}
@@ -9,69 +9,335 @@ import java.util.*;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ *
+ * <p>
+ * A thread that arrives to find a partner waiting hands the words over
+ * directly, into or out of the waiting thread's own buffer, and readies that
+ * thread; it never sleeps itself, and the partner is woken exactly once.
+ * Waiting threads are served in the order they arrived. Interrupts are
+ * disabled around each exchange, so no lock is needed.
+ *
+ * <p>
+ * A communicator may instead be given a capacity, making it a bounded
+ * channel: speakers then return as soon as their words are buffered, and
+ * wait only while the buffer is full.
  */
 public class Communicator {
-	private Lock lock;
-	
-	Condition2 speakers;
-	Condition2 listeners;
-	Condition2 returners;
-
-	int speaking=0;
-	int listening =0;	
-	
-	int word;
 	/**
 	 * Allocate a new communicator.
 	 */
 	public Communicator() {
-		lock = new Lock();
-		speakers = new Condition2(lock);
-		listeners = new Condition2(lock);
-		returners = new Condition2(lock);
-	
+		this(0);
 	}
 
+	/**
+	 * Allocate a new communicator that buffers up to <i>capacity</i> words.
+	 * A capacity of zero gives the synchronous rendezvous of
+	 * <tt>Communicator()</tt>.
+	 *
+	 * @param capacity the number of words a speaker may leave without
+	 * waiting for a listener.
+	 */
+	public Communicator(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		buffer = new int[capacity];
+	}
 
 	/**
 	 * Wait for a thread to listen through this communicator, and then transfer
 	 * <i>word</i> to the listener.
-	 * 
+	 *
 	 * <p>
 	 * Does not return until this thread is paired up with a listening thread.
 	 * Exactly one listener should receive <i>word</i>.
-	 * 
+	 *
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
-		lock.acquire();
-		speaking++;
-		listeners.wake();
-		while(listening==0)
-		     speakers.sleep();
-		this.word = word;
-		returners.wake();
-		speaking--;
-		lock.release();
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (!listeners.isEmpty()) {
+			Waiter listener = listeners.removeFirst();
+			listener.words[listener.pos++] = word;
+			listener.thread.ready();
+		}
+		else if (count < buffer.length) {
+			buffer[(head + count) % buffer.length] = word;
+			count++;
+		}
+		else {
+			await(speakers, new Waiter(new int[] { word }, 0, 1));
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Transfer every word of <i>words</i>, in order, to listeners. Words are
+	 * handed to as many waiting listeners as needed, and a listener given
+	 * several words at once receives them all with a single wakeup.
+	 *
+	 * <p>
+	 * Does not return until every word has been received by a listener, or,
+	 * for a bounded channel, buffered.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int pos = 0;
+		while (pos < words.length && !listeners.isEmpty()) {
+			Waiter listener = listeners.removeFirst();
+			int n = Math.min(words.length - pos, listener.end - listener.pos);
+			System.arraycopy(words, pos, listener.words, listener.pos, n);
+			listener.pos += n;
+			pos += n;
+			listener.thread.ready();
+		}
+
+		// only reached with listeners left waiting if every word went
+		while (pos < words.length && count < buffer.length) {
+			buffer[(head + count) % buffer.length] = words[pos++];
+			count++;
+		}
+
+		if (pos < words.length)
+			await(speakers, new Waiter(words, pos, words.length));
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
 	 * Wait for a thread to speak through this communicator, and then return the
 	 * <i>word</i> that thread passed to <tt>speak()</tt>.
-	 * 
+	 *
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-		lock.acquire();
-		listening++;
-		speakers.wake();
-		while(speaking == 0){ // nothing to listen to
-			listeners.sleep();
+		int[] word = new int[1];
+		listen(word);
+		return word[0];
+	}
+
+	/**
+	 * Wait for at least one word, then fill as much of <i>out</i> as can be
+	 * filled without waiting again. Words arrive in the order they were
+	 * spoken.
+	 *
+	 * @param out the array to receive the words.
+	 * @return the number of words stored at the start of <i>out</i>.
+	 */
+	public int listen(int[] out) {
+		if (out.length == 0)
+			return 0;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// buffered words were spoken before those of any waiting speaker
+		int n = 0;
+		while (n < out.length && count > 0) {
+			out[n++] = buffer[head];
+			head = (head + 1) % buffer.length;
+			count--;
+		}
+
+		while (n < out.length && !speakers.isEmpty()) {
+			Waiter speaker = speakers.getFirst();
+			int k = Math.min(out.length - n, speaker.end - speaker.pos);
+			System.arraycopy(speaker.words, speaker.pos, out, n, k);
+			speaker.pos += k;
+			n += k;
+			if (speaker.pos == speaker.end)
+				speakers.removeFirst().thread.ready();
 		}
-		returners.sleep();
-		int word = this.word;
-		listening--;
-		lock.release();
-		return word;
+
+		// let waiting speakers leave their words in the space just freed
+		while (count < buffer.length && !speakers.isEmpty()) {
+			Waiter speaker = speakers.getFirst();
+			buffer[(head + count) % buffer.length] = speaker.words[speaker.pos++];
+			count++;
+			if (speaker.pos == speaker.end)
+				speakers.removeFirst().thread.ready();
+		}
+
+		if (n == 0) {
+			Waiter listener = new Waiter(out, 0, out.length);
+			await(listeners, listener);
+			n = listener.pos;
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return n;
+	}
+
+	/**
+	 * Test this module with no buffer and with a small one. Each time, check
+	 * that a speaker waits for a listener only when it should, then run a
+	 * speaker using <tt>speak()</tt> and one using <tt>speakAll()</tt>
+	 * against a listener taking one word at a time and one taking up to
+	 * three, and check every word arrives once and in order per speaker.
+	 */
+	public static void selfTest() {
+		selfTest(0);
+		selfTest(4);
 	}
+
+	private static void selfTest(int capacity) {
+		final Communicator comm = new Communicator(capacity);
+
+		if (capacity == 0) {
+			final boolean[] spoken = new boolean[1];
+			KThread speaker = new KThread(new Runnable() {
+				public void run() {
+					comm.speak(42);
+					spoken[0] = true;
+				}
+			}).setName("comm speaker");
+
+			speaker.fork();
+			for (int i = 0; i < 10; i++)
+				KThread.yield();
+			Lib.assertTrue(!spoken[0]);
+			Lib.assertTrue(comm.listen() == 42);
+			speaker.join();
+			Lib.assertTrue(spoken[0]);
+		}
+		else {
+			int[] words = new int[capacity];
+			for (int i = 0; i < capacity; i++)
+				words[i] = i;
+			comm.speakAll(words);
+
+			int[] out = new int[capacity + 1];
+			Lib.assertTrue(comm.listen(out) == capacity);
+			for (int i = 0; i < capacity; i++)
+				Lib.assertTrue(out[i] == i);
+		}
+
+		final int perSpeaker = 20;
+		final boolean[] seen = new boolean[2 * perSpeaker];
+
+		KThread single = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < perSpeaker; i++)
+					comm.speak(i);
+			}
+		}).setName("comm single speaker");
+
+		KThread batch = new KThread(new Runnable() {
+			public void run() {
+				for (int i = perSpeaker; i < 2 * perSpeaker; i += 5) {
+					int[] words = new int[5];
+					for (int j = 0; j < 5; j++)
+						words[j] = i + j;
+					comm.speakAll(words);
+				}
+			}
+		}).setName("comm batch speaker");
+
+		KThread one = new KThread(new ListenTest(comm, 15, 1, seen, perSpeaker))
+				.setName("comm listener 1");
+		KThread three = new KThread(new ListenTest(comm, 2 * perSpeaker - 15, 3,
+				seen, perSpeaker)).setName("comm listener 3");
+
+		one.fork();
+		single.fork();
+		three.fork();
+		batch.fork();
+
+		single.join();
+		batch.join();
+		one.join();
+		three.join();
+
+		for (int i = 0; i < seen.length; i++)
+			Lib.assertTrue(seen[i]);
+	}
+
+	private static class ListenTest implements Runnable {
+		ListenTest(Communicator comm, int quota, int batch, boolean[] seen,
+				int split) {
+			this.comm = comm;
+			this.quota = quota;
+			this.batch = batch;
+			this.seen = seen;
+			this.split = split;
+		}
+
+		public void run() {
+			int lastLow = -1, lastHigh = -1;
+
+			for (int got = 0; got < quota;) {
+				int[] out = new int[Math.min(batch, quota - got)];
+				int n;
+				if (batch == 1) {
+					out[0] = comm.listen();
+					n = 1;
+				}
+				else {
+					n = comm.listen(out);
+				}
+
+				for (int i = 0; i < n; i++) {
+					int word = out[i];
+					Lib.assertTrue(!seen[word]);
+					seen[word] = true;
+
+					if (word < split) {
+						Lib.assertTrue(word > lastLow);
+						lastLow = word;
+					}
+					else {
+						Lib.assertTrue(word > lastHigh);
+						lastHigh = word;
+					}
+				}
+				got += n;
+			}
+		}
+
+		private Communicator comm;
+		private int quota, batch;
+		private boolean[] seen;
+		private int split;
+	}
+
+	/**
+	 * Queue the current thread, described by <i>waiter</i>, and sleep until
+	 * a partner completes its exchange and readies it. Interrupts must be
+	 * disabled.
+	 */
+	private void await(LinkedList<Waiter> queue, Waiter waiter) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		waiter.thread = KThread.currentThread();
+		queue.add(waiter);
+		KThread.sleep();
+	}
+
+	/**
+	 * A waiting thread and its words: for a speaker, those still to be
+	 * delivered, and for a listener, the space still free. Either way they
+	 * are <tt>words[pos..end-1]</tt>.
+	 */
+	private static class Waiter {
+		Waiter(int[] words, int pos, int end) {
+			this.words = words;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		KThread thread;
+		int[] words;
+		int pos, end;
+	}
+
+	private LinkedList<Waiter> speakers = new LinkedList<Waiter>();
+	private LinkedList<Waiter> listeners = new LinkedList<Waiter>();
+
+	private int[] buffer;
+	private int head = 0;
+	private int count = 0;
 }
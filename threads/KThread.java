@@ -1,8 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.Vector;
-import java.util.List;
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -69,7 +67,7 @@ public class KThread {
 
 			createIdleThread();
 		}
-		joinQueue = new Vector<KThread>();
+		joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
 	}
 
 	/**
@@ -156,6 +154,9 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		// threads that join this one donate their priority to it
+		joinQueue.acquire(this);
+
 		tcb.start(new Runnable() {
 			public void run() {
 				runThread();
@@ -205,9 +206,11 @@ public class KThread {
 
 		currentThread.status = statusFinished;
 		
-		if(currentThread.joinQueue.isEmpty() == false){
-			currentThread.joinQueue.remove(0).ready();
-		}
+		KThread joiner;
+		while ((joiner = currentThread.joinQueue.nextThread()) != null)
+			joiner.ready();
+		// take the queue back, so no joiner is left holding it
+		currentThread.joinQueue.acquire(currentThread);
 
 		sleep();
 	}
@@ -297,7 +300,7 @@ public class KThread {
 			return;
 		
 		}else{
-			joinQueue.add(currentThread);	
+			joinQueue.waitForAccess(currentThread);
 			currentThread.sleep();
 				
 		}
@@ -318,8 +321,15 @@ public class KThread {
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					if (idleTask != null)
+						idleTask.run();
+
+					// nothing can become ready before the next interrupt,
+					// which this yield's tick then fires
+					Machine.interrupt().idle();
 					yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -329,6 +339,19 @@ public class KThread {
 		idleThread.fork();
 	}
 
+	/**
+	 * Set a task for the idle thread to run each time it finds nothing else
+	 * to run, before skipping ahead to the next interrupt. Every other thread
+	 * is blocked while the task runs, so it sees no data structure in the
+	 * middle of an update. The task must not block, and must not enable or
+	 * restore interrupts, or the time it takes would be charged.
+	 * 
+	 * @param task the task to run, or <tt>null</tt> for none.
+	 */
+	public static void setIdleTask(Runnable task) {
+		idleTask = task;
+	}
+
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
@@ -338,6 +361,8 @@ public class KThread {
 		if (nextThread == null)
 			nextThread = idleThread;
 
+		ThreadedKernel.scheduler.dispatch(currentThread, nextThread);
+
 		nextThread.run();
 	}
 
@@ -569,9 +594,11 @@ public class KThread {
 
 	private static KThread currentThread = null;	
 
-	private List<KThread> joinQueue = null;	
+	private ThreadQueue joinQueue = null;	
 
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
+
+	private static Runnable idleTask = null;
 }
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  * 
@@ -25,6 +21,12 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ *
+ * <p>
+ * Each queue keeps its waiters' ticket counts in a Fenwick tree, so holding
+ * a lottery and changing a waiter's tickets both take time logarithmic in
+ * the length of the queue. Donated tickets are passed along the chain of
+ * holders as differences, never recounted.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -41,7 +43,390 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Return a random number between 0 and <i>range - 1</i>, where
+	 * <i>range</i> may exceed the range of an <tt>int</tt>.
+	 */
+	private static long randomTicket(long range) {
+		if (range <= Integer.MAX_VALUE)
+			return Lib.random((int) range);
+
+		return Math.min(range - 1, (long) (Lib.random() * range));
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiters.
+	 *
+	 * <p>
+	 * Every waiter occupies a slot of a Fenwick tree whose entries are the
+	 * waiters' effective tickets. The winning ticket is found by descending
+	 * the tree, and the total, which is what the queue donates to its
+	 * holder, is kept alongside.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState next = (LotteryState) pickNextThread();
+			if (next == null) {
+				if (holder != null)
+					((LotteryState) holder).release(this);
+				return null;
+			}
+
+			long tickets = next.getEffectiveTickets();
+			remove(next);
+			if (holder != null)
+				((LotteryState) holder).addDonated(-tickets);
+
+			next.waitQueue = null;
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads and return the winner.
+		 * Unlike a priority queue, two calls need not return the same thread.
+		 * 
+		 * @return the thread holding the winning ticket.
+		 */
+		protected ThreadState pickNextThread() {
+			if (count == 0)
+				return null;
+
+			return waiter[findTicket(randomTicket(total))];
+		}
+
+		/**
+		 * Return the total effective tickets of the waiting threads.
+		 *
+		 * @return the tickets this queue donates to its holder.
+		 */
+		protected long getTotalTickets() {
+			return total;
+		}
+
+		/**
+		 * Return the number of threads waiting on this queue.
+		 */
+		protected int size() {
+			return count;
+		}
+
+		/**
+		 * Give a waiting thread a slot in the tree, weighted by its effective
+		 * tickets.
+		 */
+		void add(LotteryState state) {
+			if (freeSlots == 0)
+				grow();
+
+			int slot = freeSlot[--freeSlots];
+			waiter[slot] = state;
+			state.slot = slot;
+			count++;
+
+			adjust(slot, state.getEffectiveTickets());
+		}
+
+		/**
+		 * Take a waiting thread's slot, and its tickets, out of the tree.
+		 */
+		void remove(LotteryState state) {
+			int slot = state.slot;
+			Lib.assertTrue(waiter[slot] == state);
+
+			adjust(slot, -weight[slot]);
+			waiter[slot] = null;
+			freeSlot[freeSlots++] = slot;
+			count--;
+		}
+
+		/**
+		 * Add <i>delta</i> tickets to the waiter in <i>slot</i>.
+		 */
+		void adjust(int slot, long delta) {
+			weight[slot] += delta;
+			total += delta;
+			for (int i = slot; i <= capacity; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Return the slot whose range of tickets contains <i>ticket</i>, a
+		 * number between 0 and <tt>total - 1</tt>.
+		 */
+		private int findTicket(long ticket) {
+			int pos = 0;
+			for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+				if (pos + step <= capacity && tree[pos + step] <= ticket) {
+					pos += step;
+					ticket -= tree[pos];
+				}
+			}
+			return pos + 1;
+		}
+
+		/**
+		 * Double the number of slots and rebuild the tree from the weights.
+		 */
+		private void grow() {
+			int newCapacity = Math.max(4, capacity * 2);
+
+			long[] newWeight = new long[newCapacity + 1];
+			LotteryState[] newWaiter = new LotteryState[newCapacity + 1];
+			System.arraycopy(weight, 1, newWeight, 1, capacity);
+			System.arraycopy(waiter, 1, newWaiter, 1, capacity);
+
+			long[] newTree = new long[newCapacity + 1];
+			for (int i = 1; i <= newCapacity; i++) {
+				newTree[i] += newWeight[i];
+				int parent = i + (i & -i);
+				if (parent <= newCapacity)
+					newTree[parent] += newTree[i];
+			}
+
+			int[] newFree = new int[newCapacity];
+			for (int slot = newCapacity; slot > capacity; slot--)
+				newFree[freeSlots++] = slot;
+
+			weight = newWeight;
+			waiter = newWaiter;
+			tree = newTree;
+			freeSlot = newFree;
+			capacity = newCapacity;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int slot = 1; slot <= capacity; slot++) {
+				if (waiter[slot] != null)
+					System.out.print(" " + waiter[slot].thread + " ("
+							+ weight[slot] + ")");
+			}
+			if (holder != null)
+				System.out.print(" held by " + holder.thread);
+		}
+
+		private int capacity = 0;
+		private int count = 0;
+		private long total = 0;
+		private long[] tree = new long[1];
+		private long[] weight = new long[1];
+		private LotteryState[] waiter = new LotteryState[1];
+		private int[] freeSlot = new int[0];
+		private int freeSlots = 0;
 	}
+
+	/**
+	 * The scheduling state of a thread under a lottery scheduler. A thread's
+	 * effective tickets are its own plus everything donated through the
+	 * queues it holds, and a change to either is passed up the chain of
+	 * holders as a difference.
+	 */
+	protected class LotteryState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return the effective tickets of the associated thread, saturated to
+		 * the range of an <tt>int</tt>.
+		 * 
+		 * @return the effective tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(Integer.MAX_VALUE, getEffectiveTickets());
+		}
+
+		/**
+		 * Return the exact effective tickets of the associated thread.
+		 */
+		public long getEffectiveTickets() {
+			return priority + donated;
+		}
+
+		/**
+		 * Set the number of tickets held by the associated thread.
+		 * 
+		 * @param priority the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			long delta = (long) priority - this.priority;
+			if (delta == 0)
+				return;
+
+			this.priority = priority;
+
+			propagate(delta);
+		}
+
+		public void waitForAccess(PriorityQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitSequence = nextWaitSequence++;
+
+			((LotteryQueue) waitQueue).add(this);
+
+			LotteryState holder = donee((LotteryQueue) waitQueue);
+			if (holder != null)
+				holder.addDonated(getEffectiveTickets());
+		}
+
+		public void acquire(PriorityQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			LotteryQueue queue = (LotteryQueue) waitQueue;
+			if (queue.holder != null)
+				((LotteryState) queue.holder).release(queue);
+
+			queue.holder = this;
+			addDonated(queue.getTotalTickets());
+		}
+
+		/**
+		 * Give up <tt>waitQueue</tt>, which this thread holds, and the
+		 * tickets donated through it.
+		 */
+		void release(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitQueue.holder == this);
+
+			waitQueue.holder = null;
+			addDonated(-waitQueue.getTotalTickets());
+		}
+
+		/**
+		 * Change the tickets donated to this thread by <i>delta</i>.
+		 */
+		void addDonated(long delta) {
+			donated += delta;
+			propagate(delta);
+		}
+
+		/**
+		 * Pass a change of <i>delta</i> in this thread's effective tickets on
+		 * to the queue it waits on, and through that queue to its holder,
+		 * and so on up the chain.
+		 */
+		private void propagate(long delta) {
+			LotteryState state = this;
+			while (delta != 0 && state.waitQueue != null) {
+				LotteryQueue queue = (LotteryQueue) state.waitQueue;
+				queue.adjust(state.slot, delta);
+
+				LotteryState holder = state.donee(queue);
+				if (holder == null)
+					break;
+
+				holder.donated += delta;
+				state = holder;
+			}
+		}
+
+		/**
+		 * Return the thread to which this thread, waiting on
+		 * <tt>waitQueue</tt>, donates its tickets, or <tt>null</tt>.
+		 */
+		private LotteryState donee(LotteryQueue waitQueue) {
+			if (!waitQueue.transferPriority || waitQueue.holder == this)
+				return null;
+
+			return (LotteryState) waitQueue.holder;
+		}
+
+		/** Tickets donated through the queues the thread holds. */
+		long donated;
+
+		/** The thread's slot in the tree of <tt>waitQueue</tt>. */
+		int slot;
+
+		/** The stride scheduler's virtual time for this thread. */
+		long pass;
+
+		/** The thread's place in the heap of a stride queue. */
+		int heapIndex;
+	}
+
+	/** Orders waiters that a stride queue would otherwise tie. */
+	static long nextWaitSequence = 0;
 }
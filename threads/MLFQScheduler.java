@@ -0,0 +1,294 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Threads start at the top level,
+ * and a queue always gives access to a thread from the highest non-empty
+ * level, first come first served within a level.
+ *
+ * <p>
+ * Level <i>i</i> has a time slice of <tt>MLFQScheduler.quantum</tt> ticks
+ * doubled <i>i</i> times; a thread is preempted at a timer interrupt only
+ * once its slice has run out. Each level also has an allotment of user ticks
+ * of the same size. A thread that uses up the allotment, over however many
+ * turns, drops a level, so a process that keeps the processor busy sinks
+ * while one that mostly waits on the console stays near the top. Every
+ * <tt>MLFQScheduler.boostPeriod</tt> ticks all threads return to the top
+ * level, so none starves.
+ *
+ * <p>
+ * The scheduler also records, per thread, the processor time it has used
+ * and how long it has spent ready but not running.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+		baseQuantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+		boostPeriod = Config.getInteger("MLFQScheduler.boostPeriod", 50000);
+
+		Lib.assertTrue(numLevels > 0 && numLevels < 31);
+		Lib.assertTrue(baseQuantum > 0 && boostPeriod > 0);
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue.
+	 *
+	 * @param transferPriority ignored. Levels are not donated.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread, 0 being the highest.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Return the processor time, in ticks, that the specified thread has used.
+	 */
+	public long getCPUTime(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).cpuTime;
+	}
+
+	/**
+	 * Return the time, in ticks, that the specified thread has spent ready
+	 * to run but waiting for the processor.
+	 */
+	public long getWaitTime(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).waitTime;
+	}
+
+	public void dispatch(KThread from, KThread to) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Stats stats = Machine.stats();
+
+		ThreadState outgoing = getThreadState(from);
+		outgoing.cpuTime += stats.totalTicks - outgoing.dispatchTime;
+		outgoing.charge(stats.userTicks - outgoing.dispatchUserTicks);
+
+		ThreadState incoming = getThreadState(to);
+		if (incoming.readyTime >= 0)
+			incoming.waitTime += stats.totalTicks - incoming.readyTime;
+		incoming.readyTime = -1;
+		incoming.dispatchTime = stats.totalTicks;
+		incoming.dispatchUserTicks = stats.userTicks;
+	}
+
+	public boolean timeSliceExpired(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		return Machine.timer().getTime() - state.dispatchTime >= quantum(state
+				.getLevel());
+	}
+
+	/**
+	 * Return the time slice, and the user tick allotment, of a level.
+	 */
+	private long quantum(int level) {
+		return (long) baseQuantum << level;
+	}
+
+	/**
+	 * Return the number of boost periods that have passed.
+	 */
+	private long currentEpoch() {
+		return Machine.timer().getTime() / boostPeriod;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with a FIFO list per level.
+	 */
+	protected class MLFQQueue extends ThreadQueue {
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		MLFQQueue() {
+			levels = new LinkedList[numLevels];
+			for (int i = 0; i < numLevels; i++)
+				levels[i] = new LinkedList<ThreadState>();
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			boost();
+
+			ThreadState state = getThreadState(thread);
+			state.readyTime = Machine.timer().getTime();
+			state.waitSequence = nextWaitSequence++;
+			levels[state.getLevel()].add(state);
+			size++;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0)
+				return null;
+
+			boost();
+
+			for (int i = 0; i < numLevels; i++) {
+				if (!levels[i].isEmpty()) {
+					size--;
+					return levels[i].removeFirst().thread;
+				}
+			}
+
+			Lib.assertNotReached();
+			return null;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		/**
+		 * If a boost period has begun since this queue last looked, move
+		 * every waiter to the top level, keeping the order they arrived in.
+		 */
+		private void boost() {
+			long epoch = currentEpoch();
+			if (epoch == boostEpoch)
+				return;
+
+			boostEpoch = epoch;
+			if (size == levels[0].size())
+				return;
+
+			LinkedList<ThreadState> merged = new LinkedList<ThreadState>();
+			while (merged.size() < size) {
+				LinkedList<ThreadState> oldest = null;
+				for (int i = 0; i < numLevels; i++) {
+					if (!levels[i].isEmpty()
+							&& (oldest == null || levels[i].getFirst().waitSequence < oldest
+									.getFirst().waitSequence))
+						oldest = levels[i];
+				}
+				merged.add(oldest.removeFirst());
+			}
+			levels[0] = merged;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++) {
+				for (Iterator<ThreadState> j = levels[i].iterator(); j.hasNext();)
+					System.out.print(j.next().thread + " (" + i + ") ");
+			}
+		}
+
+		private LinkedList<ThreadState>[] levels;
+		private int size = 0;
+		private long boostEpoch = -1;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, what it has used of the
+	 * level's allotment, and its accounting.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.epoch = currentEpoch();
+		}
+
+		/**
+		 * Return the thread's level, first returning it to the top if a boost
+		 * period has begun since it was last placed.
+		 */
+		int getLevel() {
+			long now = currentEpoch();
+			if (epoch != now) {
+				epoch = now;
+				level = 0;
+				used = 0;
+			}
+			return level;
+		}
+
+		/**
+		 * Charge the thread for user ticks it has just consumed, and drop it a
+		 * level once the allotment of its level is used up.
+		 */
+		void charge(long userTicks) {
+			int current = getLevel();
+			used += userTicks;
+
+			if (used >= quantum(current) && current < numLevels - 1) {
+				level = current + 1;
+				used = 0;
+				Lib.debug(dbgMLFQ, thread + " demoted to level " + level
+						+ " (cpu " + cpuTime + ", wait " + waitTime + ")");
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		private int level = 0;
+		private long used = 0;
+		private long epoch;
+
+		/** Processor time used and time spent ready, in ticks. */
+		long cpuTime = 0, waitTime = 0;
+
+		/** When the thread last got the processor, in total and user ticks. */
+		long dispatchTime = 0, dispatchUserTicks = 0;
+
+		/** When the thread last became ready, or -1 if it is not waiting. */
+		long readyTime = -1;
+
+		long waitSequence;
+	}
+
+	private int numLevels;
+	private int baseQuantum;
+	private int boostPeriod;
+	private long nextWaitSequence = 0;
+
+	private static final char dbgMLFQ = 'q';
+}
@@ -2,7 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
 
@@ -97,6 +96,69 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test that priority is donated through locks and joins, and given up
+	 * again. Does nothing unless this is the kernel's scheduler.
+	 */
+	public static void selfTest() {
+		if (ThreadedKernel.scheduler.getClass() != PriorityScheduler.class)
+			return;
+
+		final PriorityScheduler scheduler = (PriorityScheduler) ThreadedKernel.scheduler;
+		final KThread main = KThread.currentThread();
+		final Lock lock = new Lock();
+
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				lock.release();
+			}
+		}).setName("priority donor");
+
+		boolean intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(main, 1);
+		scheduler.setPriority(high, 7);
+		Machine.interrupt().restore(intStatus);
+
+		lock.acquire();
+		high.fork();
+		KThread.yield();	// high runs and blocks on the lock
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.getEffectivePriority(main) == 7);
+		Machine.interrupt().restore(intStatus);
+
+		lock.release();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(scheduler.getEffectivePriority(main) == 1);
+		Machine.interrupt().restore(intStatus);
+
+		high.join();
+
+		final int[] seen = new int[1];
+		KThread low = new KThread(new Runnable() {
+			public void run() {
+				boolean intStatus = Machine.interrupt().disable();
+				seen[0] = scheduler.getEffectivePriority(KThread.currentThread());
+				Machine.interrupt().restore(intStatus);
+			}
+		}).setName("priority joinee");
+
+		intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(main, 6);
+		scheduler.setPriority(low, 1);
+		Machine.interrupt().restore(intStatus);
+
+		low.fork();
+		low.join();
+		Lib.assertTrue(seen[0] == 6);
+
+		intStatus = Machine.interrupt().disable();
+		scheduler.setPriority(main, priorityDefault);
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -125,8 +187,20 @@ public class PriorityScheduler extends Scheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 
+	/**
+	 * The number of distinct priorities, and so of buckets in each queue.
+	 */
+	private static final int numLevels = priorityMaximum - priorityMinimum + 1;
+
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 *
+	 * <p>
+	 * Waiting threads are kept in one FIFO bucket per effective priority,
+	 * linked through their <tt>ThreadState</tt>s, and a bit mask records
+	 * which buckets are non-empty. The highest waiting priority, which is
+	 * also what the queue donates to its holder, is therefore read off the
+	 * mask in constant time, and so is the thread to dequeue.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +219,19 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				if (holder != null)
+					holder.release(this);
+				return null;
+			}
+
+			remove(next);
+			next.waitQueue = null;
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +241,91 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (nonEmpty == 0)
+				return null;
+
+			return head[topLevel()];
+		}
+
+		/**
+		 * Return the highest effective priority of any waiting thread, or
+		 * <tt>priorityMinimum</tt> if there is none.
+		 *
+		 * @return the priority this queue donates to its holder.
+		 */
+		protected int getDonation() {
+			if (nonEmpty == 0)
+				return priorityMinimum;
+
+			return priorityMinimum + topLevel();
+		}
+
+		private int topLevel() {
+			return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+		}
+
+		/**
+		 * Link a waiting thread into the bucket for its effective priority.
+		 * Within a bucket threads stay in the order they started waiting, so
+		 * one whose priority changed is placed among the others by age.
+		 */
+		void insert(ThreadState state) {
+			int level = state.effectivePriority - priorityMinimum;
+
+			ThreadState after = tail[level];
+			while (after != null && after.waitSequence > state.waitSequence)
+				after = after.prevWaiter;
+
+			state.prevWaiter = after;
+			if (after == null) {
+				state.nextWaiter = head[level];
+				head[level] = state;
+			}
+			else {
+				state.nextWaiter = after.nextWaiter;
+				after.nextWaiter = state;
+			}
+
+			if (state.nextWaiter == null)
+				tail[level] = state;
+			else
+				state.nextWaiter.prevWaiter = state;
+
+			nonEmpty |= 1 << level;
+		}
+
+		/**
+		 * Unlink a waiting thread from the bucket for its effective priority.
+		 */
+		void remove(ThreadState state) {
+			int level = state.effectivePriority - priorityMinimum;
+
+			if (state.prevWaiter == null)
+				head[level] = state.nextWaiter;
+			else
+				state.prevWaiter.nextWaiter = state.nextWaiter;
+
+			if (state.nextWaiter == null)
+				tail[level] = state.prevWaiter;
+			else
+				state.nextWaiter.prevWaiter = state.prevWaiter;
+
+			state.prevWaiter = state.nextWaiter = null;
+
+			if (head[level] == null)
+				nonEmpty &= ~(1 << level);
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int level = numLevels - 1; level >= 0; level--) {
+				for (ThreadState s = head[level]; s != null; s = s.nextWaiter)
+					System.out.print(" " + s.thread + " ("
+							+ s.effectivePriority + ")");
+			}
+			if (holder != null)
+				System.out.print(" held by " + holder.thread);
 		}
 
 		/**
@@ -170,12 +333,27 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The thread that last acquired this queue, if it transfers priority.
+		 */
+		ThreadState holder = null;
+
+		private ThreadState[] head = new ThreadState[numLevels];
+		private ThreadState[] tail = new ThreadState[numLevels];
+		private int nonEmpty = 0;
 	}
 
 	/**
 	 * The scheduling state of a thread. This should include the thread's
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
+	 *
+	 * <p>
+	 * The effective priority is cached. It changes only when the thread's
+	 * own priority changes or when the donation of a queue it holds changes,
+	 * and each such change is pushed once along the chain of holders, stopping
+	 * at the first thread whose effective priority stays the same.
 	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
@@ -207,8 +385,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +399,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +415,14 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitSequence = nextWaitSequence++;
+
+			int donation = waitQueue.getDonation();
+			waitQueue.insert(this);
+			donationChanged(waitQueue, donation);
 		}
 
 		/**
@@ -252,7 +436,70 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.holder != null)
+				waitQueue.holder.release(waitQueue);
+
+			waitQueue.holder = this;
+			held.add(waitQueue);
+
+			if (waitQueue.getDonation() > effectivePriority)
+				updateEffectivePriority();
+		}
+
+		/**
+		 * Give up <tt>waitQueue</tt>, which this thread holds, and with it
+		 * any priority donated through it.
+		 */
+		void release(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.holder == this);
+
+			waitQueue.holder = null;
+			held.remove(waitQueue);
+
+			// nextThread() has already taken out the waiter that was
+			// donating, so the queue's donation says nothing about what
+			// this thread loses; recompute from what it still holds
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority from the thread's own priority and
+		 * the queues it holds. If it changed, move the thread to its new
+		 * bucket in the queue it is waiting on, and pass the change on to
+		 * that queue's holder.
+		 */
+		private void updateEffectivePriority() {
+			int newPriority = priority;
+			for (Iterator<PriorityQueue> i = held.iterator(); i.hasNext();)
+				newPriority = Math.max(newPriority, i.next().getDonation());
+
+			if (newPriority == effectivePriority)
+				return;
+
+			if (waitQueue == null) {
+				effectivePriority = newPriority;
+				return;
+			}
+
+			int donation = waitQueue.getDonation();
+			waitQueue.remove(this);
+			effectivePriority = newPriority;
+			waitQueue.insert(this);
+			donationChanged(waitQueue, donation);
+		}
+
+		/**
+		 * Tell the holder of <tt>waitQueue</tt> if the priority it donates
+		 * is no longer <tt>oldDonation</tt>.
+		 */
+		private void donationChanged(PriorityQueue waitQueue, int oldDonation) {
+			ThreadState holder = waitQueue.holder;
+			if (holder != null && holder != this
+					&& waitQueue.getDonation() != oldDonation)
+				holder.updateEffectivePriority();
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +507,23 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = priorityMinimum;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitQueue = null;
+
+		/** The priority-transferring queues the associated thread holds. */
+		protected HashSet<PriorityQueue> held = new HashSet<PriorityQueue>();
+
+		/** Links within a bucket of <tt>waitQueue</tt>. */
+		ThreadState prevWaiter = null, nextWaiter = null;
+
+		/** When the associated thread started waiting on <tt>waitQueue</tt>. */
+		long waitSequence;
 	}
+
+	/** Orders waiters of equal priority by how long they have waited. */
+	private static long nextWaitSequence = 0;
 }
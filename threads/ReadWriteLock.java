@@ -0,0 +1,317 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashSet;
+
+/**
+ * A <tt>ReadWriteLock</tt> may be held by any number of readers at once, or
+ * by a single writer. Writers are preferred: once a writer is waiting, new
+ * readers wait behind it, and a writer leaving hands the lock to the next
+ * writer before any waiting reader.
+ *
+ * <p>
+ * Waiting threads sit in priority-transferring thread queues from
+ * <tt>ThreadedKernel.scheduler</tt>, so they donate to whoever blocks them.
+ * Waiting readers donate to the writer. Waiting writers donate to the
+ * writer, or during a read phase to one of the readers; if that reader
+ * leaves first, the donation moves to another reader still inside.
+ *
+ * <p>
+ * As with <tt>Lock</tt>, only a thread holding the lock may release it.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 */
+	public ReadWriteLock() {
+	}
+
+	/**
+	 * Acquire this lock for reading, waiting while a writer holds it or is
+	 * waiting for it. The current thread must not already hold this lock.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer != null || waitingWriters > 0) {
+			waitingReaders++;
+			readQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+		else {
+			admitReader(thread);
+		}
+
+		Lib.assertTrue(readers.contains(thread));
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock after reading.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		boolean wasReading = readers.remove(thread);
+		Lib.assertTrue(wasReading);
+
+		if (readers.isEmpty()) {
+			representative = null;
+			if (waitingWriters > 0)
+				admitWriter(writeQueue.nextThread());
+			else
+				writeQueue.nextThread();
+		}
+		else if (thread == representative) {
+			representative = readers.iterator().next();
+			writeQueue = handOver(writeQueue, waitingWriters, representative);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock for writing, waiting until no other thread holds it.
+	 * The current thread must not already hold this lock.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer != null || !readers.isEmpty()) {
+			waitingWriters++;
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+		else {
+			writeQueue.acquire(thread);
+			readQueue.acquire(thread);
+			writer = thread;
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock after writing, handing it to the next waiting writer
+	 * if there is one, and otherwise to every waiting reader.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(writer == KThread.currentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (waitingWriters > 0) {
+			admitWriter(writeQueue.nextThread());
+		}
+		else {
+			writer = null;
+			writeQueue.nextThread();
+
+			KThread thread;
+			while ((thread = readQueue.nextThread()) != null) {
+				waitingReaders--;
+				admitReader(thread);
+				thread.ready();
+			}
+
+			// each reader let in took the readers' queue from the one before;
+			// the last must not keep it, so start the read phase with a
+			// fresh queue that no one owns
+			readQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return writer == KThread.currentThread();
+	}
+
+	/**
+	 * Test if the current thread holds this lock, for reading or writing.
+	 *
+	 * @return true if the current thread holds this lock.
+	 */
+	public boolean isHeldByCurrentThread() {
+		KThread thread = KThread.currentThread();
+		return writer == thread || readers.contains(thread);
+	}
+
+	/**
+	 * Test that readers share the lock and exclude a writer, that a waiting
+	 * writer goes ahead of readers arriving after it, and, under the
+	 * priority scheduler, that the writer donates to the representative
+	 * reader and then to the reader that replaces it.
+	 */
+	public static void selfTest() {
+		final ReadWriteLock rw = new ReadWriteLock();
+		final Semaphore leave = new Semaphore(0);
+		final int[] order = new int[3];
+
+		KThread first = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireRead();
+				leave.P();
+				rw.releaseRead();
+			}
+		}).setName("rw first reader");
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireWrite();
+				Lib.assertTrue(rw.readers.isEmpty());
+				order[1] = ++order[0];
+				rw.releaseWrite();
+			}
+		}).setName("rw writer");
+
+		KThread late = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireRead();
+				Lib.assertTrue(rw.writer == null);
+				order[2] = ++order[0];
+				rw.releaseRead();
+			}
+		}).setName("rw late reader");
+
+		boolean donating = ThreadedKernel.scheduler.getClass() == PriorityScheduler.class;
+		PriorityScheduler scheduler = null;
+		KThread main = KThread.currentThread();
+		int low = PriorityScheduler.priorityDefault;
+		int high = PriorityScheduler.priorityMaximum;
+
+		if (donating) {
+			scheduler = (PriorityScheduler) ThreadedKernel.scheduler;
+
+			boolean intStatus = Machine.interrupt().disable();
+			scheduler.setPriority(main, low);
+			scheduler.setPriority(writer, high);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		// two readers inside at once, the first of them the representative
+		first.fork();
+		while (!rw.readers.contains(first))
+			KThread.yield();
+		rw.acquireRead();
+		Lib.assertTrue(rw.readers.size() == 2 && rw.representative == first);
+
+		// a writer waits for both
+		writer.fork();
+		while (rw.waitingWriters == 0)
+			KThread.yield();
+		Lib.assertTrue(rw.writer == null);
+
+		if (donating) {
+			boolean intStatus = Machine.interrupt().disable();
+			Lib.assertTrue(scheduler.getEffectivePriority(first) == high);
+			Lib.assertTrue(scheduler.getEffectivePriority(main) == low);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		// a reader arriving now waits behind the writer
+		late.fork();
+		while (rw.waitingReaders == 0)
+			KThread.yield();
+		Lib.assertTrue(!rw.readers.contains(late));
+
+		// the representative leaves, and the donation moves to this thread
+		leave.V();
+		first.join();
+		Lib.assertTrue(rw.representative == main);
+
+		if (donating) {
+			boolean intStatus = Machine.interrupt().disable();
+			Lib.assertTrue(scheduler.getEffectivePriority(main) == high);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		rw.releaseRead();
+
+		if (donating) {
+			boolean intStatus = Machine.interrupt().disable();
+			Lib.assertTrue(scheduler.getEffectivePriority(main) == low);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		writer.join();
+		late.join();
+		Lib.assertTrue(order[1] == 1 && order[2] == 2);
+	}
+
+	/**
+	 * Let a reader in. The first reader of a read phase takes the writers'
+	 * queue, so that writers arriving later donate to it.
+	 */
+	private void admitReader(KThread thread) {
+		readers.add(thread);
+		if (representative == null) {
+			representative = thread;
+			writeQueue.acquire(thread);
+		}
+	}
+
+	/**
+	 * Give the lock to a writer already taken off the writers' queue, which
+	 * made it that queue's owner, and have the waiting readers donate to it.
+	 */
+	private void admitWriter(KThread thread) {
+		waitingWriters--;
+		writer = thread;
+		readQueue = handOver(readQueue, waitingReaders, thread);
+		thread.ready();
+	}
+
+	/**
+	 * Make <i>holder</i> the owner of <i>queue</i>, which has <i>waiting</i>
+	 * threads in it. A thread queue may only be acquired while empty, so if
+	 * there are waiters a fresh queue is acquired and they are moved across
+	 * in the order the old queue gives them up.
+	 *
+	 * @return the queue to use from now on.
+	 */
+	private static ThreadQueue handOver(ThreadQueue queue, int waiting,
+			KThread holder) {
+		if (waiting == 0) {
+			queue.acquire(holder);
+			return queue;
+		}
+
+		ThreadQueue fresh = ThreadedKernel.scheduler.newThreadQueue(true);
+		fresh.acquire(holder);
+
+		KThread thread;
+		while ((thread = queue.nextThread()) != null)
+			fresh.waitForAccess(thread);
+
+		return fresh;
+	}
+
+	private KThread writer = null;
+	private LinkedHashSet<KThread> readers = new LinkedHashSet<KThread>();
+	private KThread representative = null;
+
+	private int waitingReaders = 0;
+	private int waitingWriters = 0;
+
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+}
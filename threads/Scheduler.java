@@ -151,4 +151,35 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called when the processor is about to be dispatched from one thread to
+	 * another, which may be the same thread. Schedulers that account for
+	 * processor time can charge <i>from</i> here. By default, does nothing.
+	 * 
+	 * <p>
+	 * Interrupts must be disabled.
+	 * 
+	 * @param from the thread giving up the processor.
+	 * @param to the thread about to run.
+	 */
+	public void dispatch(KThread from, KThread to) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified running thread should be
+	 * preempted at this timer interrupt. By default every timer interrupt
+	 * ends the time slice.
+	 * 
+	 * <p>
+	 * Interrupts must be disabled.
+	 * 
+	 * @param thread the running thread.
+	 * @return <tt>true</tt> if the thread should yield.
+	 */
+	public boolean timeSliceExpired(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return true;
+	}
 }
@@ -0,0 +1,154 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+
+/**
+ * A scheduler that gives threads a share of the processor proportional to
+ * their tickets, like a lottery scheduler, but deterministically.
+ *
+ * <p>
+ * Each thread has a stride, inversely proportional to its effective
+ * tickets, and a pass. A queue always dequeues the waiting thread with the
+ * lowest pass, which then advances by its stride. Over any interval a thread
+ * is chosen in proportion to its tickets, with an error of at most one
+ * selection, rather than only in expectation.
+ *
+ * <p>
+ * Tickets are donated through locks and joins exactly as under
+ * <tt>LotteryScheduler</tt>.
+ */
+public class StrideScheduler extends LotteryScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	/**
+	 * The pass advanced by a thread holding a single ticket.
+	 */
+	private static final long stride1 = 1L << 40;
+
+	/**
+	 * Orders waiters by pass, and those with equal pass by arrival.
+	 */
+	private static final Comparator<LotteryState> byPass = new Comparator<LotteryState>() {
+		public int compare(LotteryState a, LotteryState b) {
+			if (a.pass != b.pass)
+				return a.pass < b.pass ? -1 : 1;
+			if (a.waitSequence != b.waitSequence)
+				return a.waitSequence < b.waitSequence ? -1 : 1;
+			return 0;
+		}
+	};
+
+	/**
+	 * A <tt>LotteryQueue</tt> that picks the waiter with the lowest pass
+	 * instead of holding a lottery. Waiters are kept in a binary heap ordered
+	 * by pass, and each remembers its place in the heap, so any waiter can be
+	 * removed in logarithmic time. A waiter's pass does not change while it
+	 * waits, so the heap is not disturbed when donated tickets change its
+	 * stride.
+	 */
+	protected class StrideQueue extends LotteryQueue {
+		StrideQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		protected ThreadState pickNextThread() {
+			return heapSize == 0 ? null : heap[0];
+		}
+
+		void add(LotteryState state) {
+			// a thread that has been away does not bank the time it missed
+			state.pass = Math.max(state.pass, virtualTime);
+
+			super.add(state);
+
+			if (heapSize == heap.length) {
+				LotteryState[] newHeap = new LotteryState[heap.length * 2];
+				System.arraycopy(heap, 0, newHeap, 0, heapSize);
+				heap = newHeap;
+			}
+			siftUp(heapSize++, state);
+		}
+
+		void remove(LotteryState state) {
+			super.remove(state);
+
+			int index = state.heapIndex;
+			Lib.assertTrue(heap[index] == state);
+
+			LotteryState last = heap[--heapSize];
+			heap[heapSize] = null;
+			if (index != heapSize) {
+				// put the last waiter in the hole and restore the order
+				siftDown(index, last);
+				if (heap[index] == last)
+					siftUp(index, last);
+			}
+
+			virtualTime = Math.max(virtualTime, state.pass);
+			state.pass += stride1 / Math.max(1, state.getEffectiveTickets());
+		}
+
+		/**
+		 * Move <i>state</i> up from <i>index</i> until its parent is not
+		 * later than it.
+		 */
+		private void siftUp(int index, LotteryState state) {
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (byPass.compare(heap[parent], state) <= 0)
+					break;
+
+				place(index, heap[parent]);
+				index = parent;
+			}
+			place(index, state);
+		}
+
+		/**
+		 * Move <i>state</i> down from <i>index</i> until neither child is
+		 * earlier than it.
+		 */
+		private void siftDown(int index, LotteryState state) {
+			while (2 * index + 1 < heapSize) {
+				int child = 2 * index + 1;
+				if (child + 1 < heapSize
+						&& byPass.compare(heap[child + 1], heap[child]) < 0)
+					child++;
+				if (byPass.compare(state, heap[child]) <= 0)
+					break;
+
+				place(index, heap[child]);
+				index = child;
+			}
+			place(index, state);
+		}
+
+		private void place(int index, LotteryState state) {
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		/** The pass of the last thread dequeued. */
+		private long virtualTime = 0;
+
+		private LotteryState[] heap = new LotteryState[4];
+		private int heapSize = 0;
+	}
+}
@@ -0,0 +1,297 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+
+/**
+ * A fixed set of kernel threads that run submitted tasks in turn. A short
+ * job handed to a pool costs a queue entry rather than a new
+ * <tt>KThread</tt>, whose <tt>TCB</tt> and Java thread must be created and
+ * later destroyed.
+ *
+ * <p>
+ * Tasks are started in the order they are submitted. Each submission
+ * returns a <tt>Future</tt> through which the submitter can wait for the
+ * task and collect its result.
+ */
+public class ThreadPool {
+	/**
+	 * Allocate a new pool and fork its worker threads.
+	 *
+	 * @param name the name of the pool, used to name its workers.
+	 * @param numWorkers the number of worker threads.
+	 */
+	public ThreadPool(String name, int numWorkers) {
+		Lib.assertTrue(numWorkers > 0);
+
+		this.name = name;
+		lock = new Lock();
+		workAvailable = new Condition(lock);
+
+		workers = new KThread[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new KThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			});
+			workers[i].setName(name + " worker " + i).fork();
+		}
+	}
+
+	/**
+	 * Queue a task that computes a value.
+	 *
+	 * @param task the task to run.
+	 * @return a future that yields the task's result.
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		Future<T> future = new Future<T>(task);
+
+		lock.acquire();
+		Lib.assertTrue(!shutdown);
+		future.submitTime = Machine.timer().getTime();
+		queue.add(future);
+		numSubmitted++;
+		maxQueued = Math.max(maxQueued, queue.size());
+		workAvailable.wake();
+		lock.release();
+
+		return future;
+	}
+
+	/**
+	 * Queue a task that returns no value.
+	 *
+	 * @param task the task to run.
+	 * @return a future whose <tt>get()</tt> returns <tt>null</tt> once the
+	 * task has finished.
+	 */
+	public Future<Object> submit(final Runnable task) {
+		return submit(new Callable<Object>() {
+			public Object call() {
+				task.run();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Stop accepting tasks. Workers finish the tasks already queued and then
+	 * exit.
+	 */
+	public void shutdown() {
+		lock.acquire();
+		shutdown = true;
+		workAvailable.wakeAll();
+		lock.release();
+	}
+
+	/**
+	 * Shut the pool down and wait for every worker to exit. May be called
+	 * only once.
+	 */
+	public void awaitTermination() {
+		shutdown();
+		for (int i = 0; i < workers.length; i++)
+			workers[i].join();
+	}
+
+	/**
+	 * Return a one-line summary of the pool's activity.
+	 *
+	 * @return the statistics of this pool.
+	 */
+	public String getStatistics() {
+		lock.acquire();
+		String stats = name + ": " + workers.length + " workers, tasks "
+				+ numSubmitted + " submitted, " + numCompleted + " completed ("
+				+ numFailed + " failed), peak queue " + maxQueued
+				+ ", average wait "
+				+ (numStarted == 0 ? 0 : totalWaitTicks / numStarted)
+				+ " ticks, average run "
+				+ (numCompleted == 0 ? 0 : totalRunTicks / numCompleted)
+				+ " ticks";
+		lock.release();
+
+		return stats;
+	}
+
+	/**
+	 * Test that results come back through their futures, that a task's
+	 * exception is rethrown by <tt>get()</tt>, and that
+	 * <tt>awaitTermination()</tt> runs every task still queued before the
+	 * workers exit.
+	 */
+	public static void selfTest() {
+		ThreadPool pool = new ThreadPool("test pool", 2);
+
+		LinkedList<Future<Integer>> squares = new LinkedList<Future<Integer>>();
+		for (int i = 0; i < 10; i++) {
+			final int n = i;
+			squares.add(pool.submit(new Callable<Integer>() {
+				public Integer call() {
+					return n * n;
+				}
+			}));
+		}
+		for (int i = 0; i < 10; i++)
+			Lib.assertTrue(squares.removeFirst().get() == i * i);
+
+		final IllegalStateException unchecked = new IllegalStateException();
+		Future<Object> failed = pool.submit(new Runnable() {
+			public void run() {
+				throw unchecked;
+			}
+		});
+		try {
+			failed.get();
+			Lib.assertNotReached();
+		}
+		catch (IllegalStateException e) {
+			Lib.assertTrue(e == unchecked);
+		}
+
+		final Exception checked = new Exception();
+		Future<Integer> wrapped = pool.submit(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				throw checked;
+			}
+		});
+		try {
+			wrapped.get();
+			Lib.assertNotReached();
+		}
+		catch (RuntimeException e) {
+			Lib.assertTrue(e.getCause() == checked);
+		}
+
+		final int[] ran = new int[1];
+		LinkedList<Future<Object>> queued = new LinkedList<Future<Object>>();
+		for (int i = 0; i < 10; i++) {
+			queued.add(pool.submit(new Runnable() {
+				public void run() {
+					KThread.yield();
+					ran[0]++;
+				}
+			}));
+		}
+
+		pool.awaitTermination();
+		Lib.assertTrue(ran[0] == 10);
+		for (Future<Object> future : queued)
+			Lib.assertTrue(future.isDone());
+		Lib.assertTrue(pool.numCompleted == pool.numSubmitted
+				&& pool.numFailed == 2);
+	}
+
+	/**
+	 * The loop run by each worker: take the oldest queued task and run it,
+	 * until the pool is shut down and the queue is empty.
+	 */
+	private void work() {
+		while (true) {
+			lock.acquire();
+			while (queue.isEmpty() && !shutdown)
+				workAvailable.sleep();
+
+			if (queue.isEmpty()) {
+				lock.release();
+				return;
+			}
+
+			Future<?> future = queue.removeFirst();
+			long start = Machine.timer().getTime();
+			numStarted++;
+			totalWaitTicks += start - future.submitTime;
+			lock.release();
+
+			future.run();
+
+			lock.acquire();
+			numCompleted++;
+			if (future.failure != null)
+				numFailed++;
+			totalRunTicks += Machine.timer().getTime() - start;
+			lock.release();
+		}
+	}
+
+	/**
+	 * The pending result of a task submitted to a pool.
+	 */
+	public class Future<T> {
+		Future(Callable<T> task) {
+			this.task = task;
+			finished = new Condition(lock);
+		}
+
+		/**
+		 * Return <tt>true</tt> if the task has finished, normally or not.
+		 *
+		 * @return <tt>true</tt> if the task has finished.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Wait for the task to finish and return its result. If the task
+		 * threw an exception, it is rethrown here, wrapped if it was checked.
+		 *
+		 * @return the value returned by the task.
+		 */
+		public T get() {
+			lock.acquire();
+			while (!done)
+				finished.sleep();
+			lock.release();
+
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure != null)
+				throw new RuntimeException(failure);
+
+			return result;
+		}
+
+		void run() {
+			try {
+				result = task.call();
+			}
+			catch (Exception e) {
+				failure = e;
+			}
+
+			lock.acquire();
+			done = true;
+			finished.wakeAll();
+			lock.release();
+		}
+
+		private Callable<T> task;
+		private Condition finished;
+		private T result = null;
+		private Exception failure = null;
+		private boolean done = false;
+		private long submitTime;
+	}
+
+	private String name;
+	private KThread[] workers;
+	private LinkedList<Future<?>> queue = new LinkedList<Future<?>>();
+	private boolean shutdown = false;
+
+	private Lock lock;
+	private Condition workAvailable;
+
+	private int numSubmitted = 0;
+	private int numStarted = 0;
+	private int numCompleted = 0;
+	private int numFailed = 0;
+	private int maxQueued = 0;
+	private long totalWaitTicks = 0;
+	private long totalRunTicks = 0;
+}
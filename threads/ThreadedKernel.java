@@ -41,14 +41,19 @@ public class ThreadedKernel extends Kernel {
 
 	/**
 	 * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-	 * autograder never calls this method, so it is safe to put additional tests
-	 * here.
+	 * <tt>SynchList</tt>, <tt>PriorityScheduler</tt> and <tt>ElevatorBank</tt>
+	 * classes. Note that the autograder never calls this method, so it is safe
+	 * to put additional tests here.
 	 */
 	public void selfTest() {
 		KThread.selfTest();
 		Semaphore.selfTest();
 		SynchList.selfTest();
+		PriorityScheduler.selfTest();
+		ReadWriteLock.selfTest();
+		BoundedBuffer.selfTest();
+		Communicator.selfTest();
+		ThreadPool.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -507,6 +507,26 @@ public class UserProcess {
 	return result;
     }
 
+    /**
+     * Make <i>child</i> a child of this process, which may then join it, and
+     * fork a thread to run it. For processes whose address space was built
+     * some other way than by <tt>execute()</tt>, such as by a fork.
+     *
+     * @param	child	the new process, ready to run.
+     * @param	name	the name of its thread.
+     */
+    protected void startChild(UserProcess child, String name) {
+	child.parentProcess = this;
+
+	UserKernel.processLock.acquire();
+
+	UserKernel.numRunningProcesses++;
+	childProcesses.add(new Integer(child.processID));
+	new UThread(child).setName(name).fork();
+
+	UserKernel.processLock.release();
+    }
+
     private int handleJoin(int childID, int vaddrStatus) {
 	Integer integerChildID = new Integer(childID);
 	Integer status;
@@ -570,57 +590,168 @@ public class UserProcess {
 	if (of == null)
 	    return -1;
 
-	int total = 0;
-	while (length > 0) {
-	    int transfer = Math.min(length, ioBufferSize);
+	return transferFile(of, vaddrBuffer, length, true, -1);
+    }
 
-	    int actual = of.read(ioBuffer, 0, transfer);
-	    if (actual == -1) {
-		total = -1;
-		break;
-	    }
+    private int handleWrite(int fileDescriptor, int vaddrBuffer, int length) {
+	if (fileDescriptor<0 || fileDescriptor>=maxFiles)
+	    return -1;
+	if (length<0)
+	    return -1;
 
-	    actual = writeVirtualMemory(vaddrBuffer, ioBuffer, 0, actual);
+	OpenFile of = fileTable[fileDescriptor];
+	if (of == null)
+	    return -1;
 
-	    vaddrBuffer += actual;
-	    length -= actual;
-	    total += actual;
+	return transferFile(of, vaddrBuffer, length, false, -1);
+    }
 
-	    if (actual < transfer)
-		break;
-	}
+    private int handlePositional(int fileDescriptor, int vaddrBuffer,
+				 int length, int position, boolean read) {
+	if (fileDescriptor<0 || fileDescriptor>=maxFiles)
+	    return -1;
+	if (length<0 || position<0)
+	    return -1;
 
-	return total;
+	OpenFile of = fileTable[fileDescriptor];
+	if (of == null)
+	    return -1;
+
+	return transferFile(of, vaddrBuffer, length, read, position);
     }
 
-    private int handleWrite(int fileDescriptor, int vaddrBuffer, int length) {
+    /**
+     * Handle <tt>readv()</tt> and <tt>writev()</tt>: fetch the array of
+     * <tt>iovcnt</tt> (base, length) pairs at <i>vaddrIov</i> in one copy,
+     * then transfer each buffer in turn, stopping at the first short one.
+     */
+    private int handleVectored(int fileDescriptor, int vaddrIov, int iovcnt,
+			       boolean read) {
 	if (fileDescriptor<0 || fileDescriptor>=maxFiles)
 	    return -1;
-	if (length<0)
+	if (iovcnt<0 || iovcnt>maxIovecs)
 	    return -1;
 
 	OpenFile of = fileTable[fileDescriptor];
 	if (of == null)
 	    return -1;
 
+	byte[] iov = new byte[iovcnt*8];
+	if (readVirtualMemory(vaddrIov, iov) < iov.length)
+	    return -1;
+
+	for (int i=0; i<iovcnt; i++) {
+	    if (Lib.bytesToInt(iov, i*8+4) < 0)
+		return -1;
+	}
+
 	int total = 0;
-	while (length > 0) {
-	    int transfer = Math.min(length, ioBufferSize);
+	for (int i=0; i<iovcnt; i++) {
+	    int base = Lib.bytesToInt(iov, i*8);
+	    int length = Lib.bytesToInt(iov, i*8+4);
 
-	    int actual = readVirtualMemory(vaddrBuffer, ioBuffer, 0, transfer);
+	    int actual = transferFile(of, base, length, read, -1);
+	    if (actual == -1)
+		return (read || total == 0) ? -1 : total;
 
-	    actual = of.write(ioBuffer, 0, actual);
-	    if (actual == -1) {
-		if (total == 0)
-		    total = -1;
+	    total += actual;
+	    if (actual < length)
 		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Move up to <i>length</i> bytes between an open file and this process's
+     * virtual memory, with no intermediate buffer. The pages under the user
+     * buffer are pinned a batch at a time, and the file reads into or writes
+     * from main memory directly, one call per run of physically contiguous
+     * frames.
+     *
+     * @param	of	the file to transfer to or from.
+     * @param	vaddr	the first byte of the user buffer.
+     * @param	length	the number of bytes to transfer.
+     * @param	toMemory	<tt>true</tt> to read from the file into memory,
+     *				<tt>false</tt> to write memory to the file.
+     * @param	position	the file offset to transfer at, or -1 to use
+     *				and advance the file's own position.
+     * @return	the number of bytes transferred, or -1 if a read fails or
+     *		a write fails before anything was written.
+     */
+    private int transferFile(OpenFile of, int vaddr, int length,
+			     boolean toMemory, int position) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int total = 0;
+	while (length > 0) {
+	    int numPinned = 0, numSegments = 0, batch = 0;
+
+	    while (numPinned < ioBatchPages && batch < length) {
+		int vpn = Processor.pageFromAddress(vaddr + batch);
+		int off = Processor.offsetFromAddress(vaddr + batch);
+		int transfer = Math.min(length - batch, pageSize-off);
+
+		if (vpn < 0 || vpn >= pageTable.length)
+		    break;
+
+		int ppn = pinVirtualPage(vpn, toMemory);
+		if (ppn == -1)
+		    break;
+		ioPages[numPinned++] = vpn;
+
+		// a frame that follows the last one extends its segment
+		int start = ppn*pageSize + off;
+		if (numSegments > 0 &&
+		    ioStart[numSegments-1] + ioLength[numSegments-1] == start) {
+		    ioLength[numSegments-1] += transfer;
+		}
+		else {
+		    ioStart[numSegments] = start;
+		    ioLength[numSegments] = transfer;
+		    numSegments++;
+		}
+		batch += transfer;
 	    }
 
-	    vaddrBuffer += actual;
-	    length -= actual;
-	    total += actual;
+	    if (numPinned == 0)
+		break;
+
+	    int moved = 0;
+	    boolean failed = false;
+	    for (int i=0; i<numSegments; i++) {
+		int actual;
+		if (position < 0)
+		    actual = toMemory ?
+			of.read(memory, ioStart[i], ioLength[i]) :
+			of.write(memory, ioStart[i], ioLength[i]);
+		else
+		    actual = toMemory ?
+			of.read(position+total+moved, memory, ioStart[i],
+				ioLength[i]) :
+			of.write(position+total+moved, memory, ioStart[i],
+				 ioLength[i]);
+		if (actual == -1) {
+		    failed = true;
+		    break;
+		}
+
+		moved += actual;
+		if (actual < ioLength[i])
+		    break;
+	    }
+
+	    for (int i=0; i<numPinned; i++)
+		unpinVirtualPage(ioPages[i]);
+
+	    if (failed && (toMemory || total+moved == 0))
+		return -1;
 
-	    if (actual < transfer)
+	    vaddr += moved;
+	    length -= moved;
+	    total += moved;
+
+	    if (moved < batch || failed)
 		break;
 	}
 
@@ -662,7 +793,11 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallReadv = 13,
+	syscallWritev = 14,
+	syscallPread = 15,
+	syscallPwrite = 16;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -683,6 +818,14 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+     *								</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+     *								</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  pread(int fd, char *buffer, int size, int offset);
+     *								</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  pwrite(int fd, char *buffer, int size, int offset);
+     *								</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -709,6 +852,18 @@ public class UserProcess {
 	case syscallWrite:
 	    return handleWrite(a0, a1, a2);
 
+	case syscallReadv:
+	    return handleVectored(a0, a1, a2, true);
+
+	case syscallWritev:
+	    return handleVectored(a0, a1, a2, false);
+
+	case syscallPread:
+	    return handlePositional(a0, a1, a2, a3, true);
+
+	case syscallPwrite:
+	    return handlePositional(a0, a1, a2, a3, false);
+
 	case syscallClose:
 	    return handleClose(a0);
 
@@ -781,13 +936,19 @@ public class UserProcess {
     private UserProcess parentProcess = null;
     private int processID;
     
-    private HashSet childProcesses = new HashSet();
+    private HashSet<Integer> childProcesses = new HashSet<Integer>();
     private HashMap exitStatusTable = new HashMap();
     private Condition childFinished = new Condition(UserKernel.processLock);
     private boolean abnormalTermination = false;
     
-    private byte[] ioBuffer = new byte[ioBufferSize];
-    private static final int ioBufferSize = 1024;
+    /** The most buffers one <tt>readv()</tt> or <tt>writev()</tt> takes. */
+    private static final int maxIovecs = 16;
+
+    /** The most pages a read or write pins at once. */
+    private static final int ioBatchPages = 4;
+    private int[] ioPages = new int[ioBatchPages];
+    private int[] ioStart = new int[ioBatchPages];
+    private int[] ioLength = new int[ioBatchPages];
     
     protected OpenFile[] fileTable = new OpenFile[maxFiles];
     protected static final int maxFiles = 16;
@@ -0,0 +1,128 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import nachos.machine.*;
+
+/**
+ * Adaptive replacement (Megiddo and Modha). Resident pages are split
+ * between T1, pages referenced once, and T2, pages referenced again. Ghost
+ * lists B1 and B2 remember pages recently evicted from each. A fault on a
+ * ghost shows which list was too small, and moves the target size of T1,
+ * <i>p</i>, toward it.
+ *
+ * <p>
+ * Hits between faults are seen through TLB refills and the used bit, in
+ * the manner of CAR: a frame found referenced at the LRU end of either
+ * list moves to the front of T2 instead of being evicted.
+ */
+public class ARCPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new ARC policy.
+	 */
+	public ARCPolicy() {
+	}
+
+	public void initialize(int numFrames) {
+		capacity = numFrames;
+		t1 = new FrameList(numFrames);
+		t2 = new FrameList(numFrames);
+		b1 = new LinkedHashSet<TEKey>();
+		b2 = new LinkedHashSet<TEKey>();
+		pages = new TEKey[numFrames];
+	}
+
+	public void pageIn(int ppn, TEKey page) {
+		pages[ppn] = page;
+		if (b1.contains(page)) {
+			// T1 was too small
+			p = Math.min(capacity, p + Math.max(1, b2.size() / b1.size()));
+			b1.remove(page);
+			ghostHits++;
+			t2.addFirst(ppn);
+		}
+		else if (b2.contains(page)) {
+			// T2 was too small
+			p = Math.max(0, p - Math.max(1, b1.size() / b2.size()));
+			b2.remove(page);
+			ghostHits++;
+			t2.addFirst(ppn);
+		}
+		else {
+			t1.addFirst(ppn);
+		}
+	}
+
+	public void referenced(int ppn) {
+		if (t1.contains(ppn)) {
+			t1.remove(ppn);
+			t2.addFirst(ppn);
+		}
+		else if (t2.contains(ppn)) {
+			t2.moveToFront(ppn);
+		}
+	}
+
+	public void remove(int ppn) {
+		if (t1.contains(ppn))
+			t1.remove(ppn);
+		else if (t2.contains(ppn))
+			t2.remove(ppn);
+		pages[ppn] = null;
+	}
+
+	public int selectVictim() {
+		int ppn = -1;
+		if (t1.size() > Math.max(p, 0) || t2.size() == 0)
+			ppn = evictFrom(t1, b1);
+		if (ppn == -1)
+			ppn = evictFrom(t2, b2);
+		if (ppn == -1)
+			ppn = evictFrom(t1, b1);
+		return ppn;
+	}
+
+	private int evictFrom(FrameList list, LinkedHashSet<TEKey> ghosts) {
+		int ppn = list.scan(t2);
+		if (ppn == -1)
+			return -1;
+
+		if (list == t1)
+			t1Evictions++;
+		else
+			t2Evictions++;
+
+		ghosts.add(pages[ppn]);
+		pages[ppn] = null;
+
+		// |T1| + |B1| <= c and the whole directory stays within 2c
+		while (t1.size() + b1.size() > capacity && !b1.isEmpty())
+			dropOldest(b1);
+		while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity
+				&& !b2.isEmpty())
+			dropOldest(b2);
+		return ppn;
+	}
+
+	private static void dropOldest(LinkedHashSet<TEKey> ghosts) {
+		Iterator<TEKey> oldest = ghosts.iterator();
+		oldest.next();
+		oldest.remove();
+	}
+
+	public String getStatistics() {
+		return "ARC: evictions " + (t1Evictions + t2Evictions) + " (T1 "
+				+ t1Evictions + ", T2 " + t2Evictions + "), ghost hits "
+				+ ghostHits + ", target T1 size " + p;
+	}
+
+	private int capacity;
+	private int p = 0;
+	private FrameList t1, t2;
+	private LinkedHashSet<TEKey> b1, b2;
+	private TEKey[] pages;
+	private int t1Evictions = 0;
+	private int t2Evictions = 0;
+	private int ghostHits = 0;
+}
@@ -0,0 +1,62 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock (second chance) algorithm. A hand sweeps the frames in order,
+ * clearing used bits, and evicts the first unpinned frame whose used bit
+ * was already clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+	}
+
+	public void initialize(int numFrames) {
+		resident = new boolean[numFrames];
+	}
+
+	public void pageIn(int ppn, TEKey page) {
+		resident[ppn] = true;
+	}
+
+	public void referenced(int ppn) {
+	}
+
+	public void remove(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int selectVictim() {
+		// two sweeps clear every used bit, so a third finds nothing new
+		for (int i = 0; i < 2 * resident.length + 1; i++) {
+			int ppn = clockHand;
+			clockHand = (clockHand + 1) % resident.length;
+
+			if (!resident[ppn] || VMKernel.isPinned(ppn))
+				continue;
+
+			if (VMKernel.testAndClearUsed(ppn)) {
+				secondChances++;
+				continue;
+			}
+
+			resident[ppn] = false;
+			evictions++;
+			return ppn;
+		}
+		return -1;
+	}
+
+	public String getStatistics() {
+		return "Clock: evictions " + evictions + ", second chances "
+				+ secondChances;
+	}
+
+	private boolean[] resident;
+	private int clockHand = 0;
+	private int evictions = 0;
+	private int secondChances = 0;
+}
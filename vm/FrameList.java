@@ -0,0 +1,97 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An ordered list of physical page numbers, most recently used first. Links
+ * are kept in arrays indexed by frame, so every operation is constant time
+ * and nothing is allocated. A frame may be on at most one list of a policy
+ * at a time.
+ */
+class FrameList {
+	/**
+	 * Allocate an empty list able to hold frames <tt>0..numFrames-1</tt>.
+	 */
+	FrameList(int numFrames) {
+		next = new int[numFrames + 1];
+		prev = new int[numFrames + 1];
+		onList = new boolean[numFrames];
+		head = numFrames;
+		next[head] = prev[head] = head;
+	}
+
+	boolean contains(int ppn) {
+		return onList[ppn];
+	}
+
+	int size() {
+		return size;
+	}
+
+	/** Insert a frame at the most recently used end. */
+	void addFirst(int ppn) {
+		Lib.assertTrue(!onList[ppn]);
+		next[ppn] = next[head];
+		prev[ppn] = head;
+		prev[next[head]] = ppn;
+		next[head] = ppn;
+		onList[ppn] = true;
+		size++;
+	}
+
+	void remove(int ppn) {
+		Lib.assertTrue(onList[ppn]);
+		next[prev[ppn]] = next[ppn];
+		prev[next[ppn]] = prev[ppn];
+		onList[ppn] = false;
+		size--;
+	}
+
+	void moveToFront(int ppn) {
+		remove(ppn);
+		addFirst(ppn);
+	}
+
+	/** Return the least recently used frame, or -1 if the list is empty. */
+	int last() {
+		return prev[head] == head ? -1 : prev[head];
+	}
+
+	/**
+	 * Remove and return the least recently used frame that is not pinned,
+	 * or -1 if there is none. If <i>promoteTo</i> is not <tt>null</tt>, a
+	 * frame whose used bit is set is moved to the front of that list
+	 * instead (which may be this list) and the scan goes on.
+	 *
+	 * @return the frame removed.
+	 */
+	int scan(FrameList promoteTo) {
+		int cur = last();
+		for (int steps = 2 * size + 1; steps > 0 && cur != -1; steps--) {
+			int before = prev[cur] == head ? -1 : prev[cur];
+			if (VMKernel.isPinned(cur)) {
+				cur = before;
+				continue;
+			}
+			if (promoteTo != null && VMKernel.testAndClearUsed(cur)) {
+				remove(cur);
+				promoteTo.addFirst(cur);
+				// a frame moved from the tail of its own list comes round again
+				cur = (before == -1) ? last() : before;
+				promotions++;
+				continue;
+			}
+			remove(cur);
+			return cur;
+		}
+		return -1;
+	}
+
+	/** The number of referenced frames moved to the front by scan(). */
+	int promotions = 0;
+
+	private int[] next, prev;
+	private boolean[] onList;
+	private int head;
+	private int size = 0;
+}
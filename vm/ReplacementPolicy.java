@@ -0,0 +1,75 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Decides which physical page <tt>VMKernel</tt> evicts when it runs out of
+ * free frames. The kernel tells the policy when a frame is filled, when a
+ * resident page is referenced, and when a frame is given back by an
+ * exiting process; the policy answers with victims.
+ *
+ * <p>
+ * Policies see reference information in two ways: <tt>referenced()</tt> is
+ * called whenever a resident page is refilled into the TLB, and
+ * <tt>VMKernel.testAndClearUsed()</tt> samples and clears the hardware used
+ * bit. A policy must never choose a frame for which
+ * <tt>VMKernel.isPinned()</tt> returns <tt>true</tt>.
+ *
+ * <p>
+ * The policy is selected with the <tt>VMKernel.replacementPolicy</tt> key
+ * in <tt>nachos.conf</tt>.
+ *
+ * @see nachos.vm.ClockPolicy
+ * @see nachos.vm.WSClockPolicy
+ * @see nachos.vm.TwoQPolicy
+ * @see nachos.vm.ARCPolicy
+ */
+public interface ReplacementPolicy {
+	/**
+	 * Prepare to manage the specified number of physical pages. Called once,
+	 * before any other method.
+	 *
+	 * @param numFrames the number of physical pages.
+	 */
+	public void initialize(int numFrames);
+
+	/**
+	 * Note that a page was loaded into a frame, either to satisfy a fault
+	 * or by read-ahead.
+	 *
+	 * @param ppn the frame that now holds the page.
+	 * @param page the process and virtual page it holds.
+	 */
+	public void pageIn(int ppn, TEKey page);
+
+	/**
+	 * Note that the resident page in the specified frame was referenced.
+	 *
+	 * @param ppn the frame that was referenced.
+	 */
+	public void referenced(int ppn);
+
+	/**
+	 * Forget a frame that is being freed without eviction, because the
+	 * process that owned it exited.
+	 *
+	 * @param ppn the frame being freed.
+	 */
+	public void remove(int ppn);
+
+	/**
+	 * Choose a resident, unpinned frame to evict, and stop tracking it. The
+	 * kernel writes the page back if it is dirty.
+	 *
+	 * @return the frame to evict, or -1 if every resident frame is pinned.
+	 */
+	public int selectVictim();
+
+	/**
+	 * Return a one-line summary of this policy's name and counters, for
+	 * printing when Nachos halts.
+	 *
+	 * @return the policy's statistics.
+	 */
+	public String getStatistics();
+}
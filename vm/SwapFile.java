@@ -6,50 +6,130 @@ import nachos.userprog.*;
 import nachos.threads.*;
 import nachos.threads.Lock;
 
+/**
+ * The swap file backing evicted pages. Slots are page sized and tracked in
+ * a bitmap, so membership tests are constant time and runs of adjacent
+ * slots can be handed out together and moved with a single read or write.
+ * Allocation is first fit from slot 0, which keeps the file compact.
+ * A slot can be shared by processes forked from one another; it is freed
+ * when the last of them frees it.
+ */
 public class SwapFile{
 
 	public static OpenFile swapFile;
 	private static String swapName;
 	private static int PAGESIZE  = Machine.processor().pageSize;
-	public static List<Integer> freePages;
-	public static List<Integer> allocatedPages;
+	/* one bit per slot, set while the slot holds a page */
+	private static BitSet allocated;
+	/* references beyond the first to each shared slot */
+	private static HashMap<Integer, Integer> extraRefs;
+	/* staging area for multi-page transfers, grown on demand */
+	private static byte[] buffer;
 	private static Lock swapLock;
 	private static byte[] memory = Machine.processor().getMemory();
 
 	public static void initialize(String filename){
 		swapFile = ThreadedKernel.fileSystem.open(filename, true);
 		swapName = filename;
-		freePages = new LinkedList<Integer>();
-		allocatedPages = new LinkedList<Integer>();
+		allocated = new BitSet();
+		extraRefs = new HashMap<Integer, Integer>();
+		buffer = new byte[PAGESIZE];
 		swapLock = new Lock();
 	}
 
 	public static void close(){
+		swapLock.acquire();
 		swapFile.close();
+		swapFile = null;
+		swapLock.release();
 		ThreadedKernel.fileSystem.remove(swapName);
 	}
 
+	/**
+	 * Reserve <i>count</i> adjacent slots, taking the lowest run that fits.
+	 *
+	 * @return	the first slot of the run.
+	 */
+	public static int allocate(int count){
+		Lib.assertTrue(count > 0);
+		swapLock.acquire();
+		int spn = findRun(count);
+		allocated.set(spn, spn + count);
+		swapLock.release();
+		return spn;
+	}
+
+	/* first fit; the bitmap is unbounded, so this always succeeds */
+	private static int findRun(int count){
+		int start = allocated.nextClearBit(0);
+		while(true){
+			int end = allocated.nextSetBit(start);
+			if(end == -1 || end - start >= count){
+				return start;
+			}
+			start = allocated.nextClearBit(end);
+		}
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified slot currently holds a page.
+	 */
+	public static boolean isAllocated(int spn){
+		return spn >= 0 && allocated.get(spn);
+	}
+
+	/**
+	 * Return the number of slots currently holding a page.
+	 */
+	public static int numAllocated(){
+		return allocated.cardinality();
+	}
+
 	public static int insertPage(int spn, int ppn){
 		swapLock.acquire();
-		int numBits = swapFile.write(spn*PAGESIZE, memory, ppn * PAGESIZE, PAGESIZE);	
-		// assert that numBits == PAGESIZE
-		allocatedPages.add(spn);
+		int numBits = swapFile.write(spn*PAGESIZE, memory, ppn * PAGESIZE, PAGESIZE);
+		Lib.assertTrue(numBits == PAGESIZE);
+		allocated.set(spn);
 		swapLock.release();
-		return spn; 
+		return spn;
+	}
+
+	/* we will try to allocate a free page from the bitmap */
+	public static int insertPage(int ppn){
+		return insertPage(allocate(1), ppn);
 	}
 
-	/* we will try to allocate a free page from the freepages*/
-	public static int insertPage(int ppn){		
-		int numBits = 0;
-		int spn = swapFile.length() / PAGESIZE;
-		if(freePages.size() > 0){
-			spn = freePages.remove(0);
+	/**
+	 * Write the physical pages <tt>ppns[0..count-1]</tt> to the run of
+	 * slots starting at <i>spn</i> with one sequential write.
+	 */
+	public static void writePages(int spn, int[] ppns, int count){
+		writePages(spn, ppns, 0, count);
+	}
+
+	/**
+	 * Write the physical pages <tt>ppns[first..first+count-1]</tt> to the
+	 * run of slots starting at <i>spn</i> with one sequential write.
+	 */
+	public static void writePages(int spn, int[] ppns, int first, int count){
+		swapLock.acquire();
+		// the page cleaner can still be writing while the kernel shuts down
+		if(swapFile == null){
+			swapLock.release();
+			return;
+		}
+		byte[] run = stagingBuffer(count);
+		for(int i = 0; i < count; i++){
+			System.arraycopy(memory, ppns[first + i]*PAGESIZE, run, i*PAGESIZE, PAGESIZE);
 		}
-		return insertPage(spn, ppn);
+		int numBits = swapFile.write(spn*PAGESIZE, run, 0, count*PAGESIZE);
+		Lib.assertTrue(numBits == count*PAGESIZE);
+		allocated.set(spn, spn + count);
+		swapLock.release();
 	}
-	
+
 	public static void readPage(int spn, int ppn){
-		if(allocatedPages.contains(spn)){
+		if(isAllocated(spn)){
 			swapLock.acquire();
 			swapFile.read(spn*PAGESIZE, memory, ppn*PAGESIZE, PAGESIZE);
 			swapLock.release();
@@ -57,10 +137,69 @@ public class SwapFile{
 		}
 	}
 
+	/**
+	 * Read the run of slots starting at <i>spn</i> into the physical pages
+	 * <tt>ppns[0..count-1]</tt> with one sequential read. Every slot in the
+	 * run must be allocated.
+	 */
+	public static void readPages(int spn, int[] ppns, int count){
+		swapLock.acquire();
+		Lib.assertTrue(spn >= 0 && allocated.nextClearBit(spn) >= spn + count);
+		byte[] run = stagingBuffer(count);
+		swapFile.read(spn*PAGESIZE, run, 0, count*PAGESIZE);
+		for(int i = 0; i < count; i++){
+			System.arraycopy(run, i*PAGESIZE, memory, ppns[i]*PAGESIZE, PAGESIZE);
+		}
+		swapLock.release();
+	}
+
+	/* callers hold swapLock */
+	private static byte[] stagingBuffer(int count){
+		if(buffer.length < count*PAGESIZE){
+			buffer = new byte[count*PAGESIZE];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Add a reference to an allocated slot, which <tt>free()</tt> must then
+	 * drop once more before the slot is released.
+	 */
+	public static void share(int spn){
+		swapLock.acquire();
+		Lib.assertTrue(isAllocated(spn));
+		Integer refs = extraRefs.get(spn);
+		extraRefs.put(spn, refs == null ? 1 : refs + 1);
+		swapLock.release();
+	}
+
 	public static void free(int page){
+		free(page, 1);
+	}
+
+	/**
+	 * Release a run of slots. Slots that are not allocated are ignored, so
+	 * a page that never reached swap can be freed safely. A shared slot
+	 * just loses a reference.
+	 */
+	public static void free(int spn, int count){
+		if(spn < 0){
+			return;
+		}
 		swapLock.acquire();
-		freePages.add(page);		
+		if(extraRefs.isEmpty()){
+			allocated.clear(spn, spn + count);
+		}else{
+			for(int i = spn; i < spn + count; i++){
+				Integer refs = extraRefs.remove(i);
+				if(refs == null){
+					allocated.clear(i);
+				}else if(refs > 1){
+					extraRefs.put(i, refs - 1);
+				}
+			}
+		}
 		swapLock.release();
 	}
-	
+
 }
@@ -20,15 +20,14 @@ public class TEKey{
 	}
 	@Override
 	public int hashCode(){
-		return new String(vpn + "-" + pid).hashCode();
+		return (pid * 0x9E3779B1) ^ vpn;
 	}
 	@Override
 	public boolean equals(Object o){
-		if(obj instanceOf TEKey){
+		if(o instanceof TEKey){
 			TEKey obj = (TEKey) o;
 			return (obj.vpn == this.vpn && obj.pid == this.pid);
 		}
 		return false;	
 	}
 }
-
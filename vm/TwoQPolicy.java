@@ -0,0 +1,99 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import nachos.machine.*;
+
+/**
+ * The 2Q algorithm (Johnson and Shasha). New pages enter a FIFO queue,
+ * A1in, holding about a quarter of memory. Pages evicted from A1in are
+ * remembered in a ghost queue, A1out. A page that faults again while in
+ * A1out has proved it is reused and goes to the main LRU queue, Am. Pages
+ * touched only once are evicted from A1in without disturbing Am.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new 2Q policy.
+	 */
+	public TwoQPolicy() {
+	}
+
+	public void initialize(int numFrames) {
+		a1in = new FrameList(numFrames);
+		am = new FrameList(numFrames);
+		a1out = new LinkedHashSet<TEKey>();
+		pages = new TEKey[numFrames];
+		maxIn = Math.max(1, numFrames / 4);
+		maxOut = Math.max(1, numFrames / 2);
+	}
+
+	public void pageIn(int ppn, TEKey page) {
+		pages[ppn] = page;
+		if (a1out.remove(page)) {
+			ghostHits++;
+			am.addFirst(ppn);
+		}
+		else {
+			a1in.addFirst(ppn);
+		}
+	}
+
+	public void referenced(int ppn) {
+		// references while in A1in are taken to be correlated
+		if (am.contains(ppn))
+			am.moveToFront(ppn);
+	}
+
+	public void remove(int ppn) {
+		if (a1in.contains(ppn))
+			a1in.remove(ppn);
+		else if (am.contains(ppn))
+			am.remove(ppn);
+		pages[ppn] = null;
+	}
+
+	public int selectVictim() {
+		int ppn = -1;
+		if (a1in.size() > maxIn || am.size() == 0)
+			ppn = evictIn();
+		if (ppn == -1) {
+			ppn = am.scan(am);
+			if (ppn != -1)
+				amEvictions++;
+		}
+		if (ppn == -1)
+			ppn = evictIn();
+		if (ppn != -1)
+			pages[ppn] = null;
+		return ppn;
+	}
+
+	private int evictIn() {
+		int ppn = a1in.scan(null);
+		if (ppn != -1) {
+			inEvictions++;
+			a1out.add(pages[ppn]);
+			if (a1out.size() > maxOut) {
+				Iterator<TEKey> oldest = a1out.iterator();
+				oldest.next();
+				oldest.remove();
+			}
+		}
+		return ppn;
+	}
+
+	public String getStatistics() {
+		return "2Q: evictions " + (inEvictions + amEvictions) + " (A1in "
+				+ inEvictions + ", Am " + amEvictions + "), ghost hits "
+				+ ghostHits;
+	}
+
+	private FrameList a1in, am;
+	private LinkedHashSet<TEKey> a1out;
+	private TEKey[] pages;
+	private int maxIn, maxOut;
+	private int inEvictions = 0;
+	private int amEvictions = 0;
+	private int ghostHits = 0;
+}
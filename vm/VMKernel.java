@@ -5,6 +5,13 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -29,9 +36,49 @@ public class VMKernel extends UserKernel {
 		}
 		memoryLock = new Lock();
 		clockLock = new Lock();
+		policy = (ReplacementPolicy) Lib.constructObject(
+				Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+		policy.initialize(Machine.processor().getNumPhysPages());
 		//VMProcess.TLBLock = new Lock();
 		allPinned = new Condition(memoryLock);	
-		//invertedPageTable = new HashMap<TEKey, ProcessTranslationEntry>();
+		invertedPageTable = new HashMap<TEKey, Integer>();
+
+		clusterSize = Config.getInteger("VMKernel.clusterSize", 1);
+		readAhead = Config.getInteger("VMKernel.readAhead", 0);
+		Lib.assertTrue(clusterSize >= 1 && readAhead >= 0);
+		clusterFrames = new int[clusterSize];
+		readFrames = new int[readAhead + 1];
+
+		if(Config.getBoolean("VMKernel.shareText", false)){
+			sharedText = new HashMap<String, int[]>();
+		}
+
+		zeroedPages = new LinkedList<Integer>();
+		zeroPoolSize = Config.getInteger("VMKernel.zeroPool", 0);
+		Lib.assertTrue(zeroPoolSize >= 0);
+		if(zeroPoolSize > 0){
+			KThread.setIdleTask(new Runnable() {
+				public void run() {
+					refillZeroPool();
+				}
+			});
+		}
+
+		if(Config.getBoolean("VMKernel.pageCleaner", false)){
+			lowWater = Config.getInteger("VMKernel.cleanerLowWater",
+					Math.max(1, Machine.processor().getNumPhysPages() / 4));
+			Lib.assertTrue(lowWater >= 1);
+			cleanerFrames = new int[lowWater];
+			cleanerLock = new Lock();
+			cleanerReady = new Condition(cleanerLock);
+			cleaningDone = new Condition(clockLock);
+			KThread cleaner = new KThread(new Runnable() {
+				public void run() {
+					runCleaner();
+				}
+			});
+			cleaner.setName("page cleaner").fork();
+		}
 	}
 
 	/**
@@ -52,95 +99,828 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		Stats stats = Machine.stats();
+		System.out.println("Replacement: " + policy.getStatistics()
+				+ ", fault rate " + (stats.userTicks == 0 ? 0 : 1000000 * stats.numPageFaults / stats.userTicks)
+				+ " per million instructions"
+				+ (sharedText == null ? "" : ", shared text hits " + sharedHits));
+		// the last process has exited, so a slot still in use was leaked
+		Lib.assertTrue(SwapFile.numAllocated() == 0, "swap slots leaked");
 		SwapFile.close();
 		super.terminate();
 	}
 	
 	// Raise page fault.
-	public static TranslationEntry raisePageFault(VMProcess process, TranslationEntry entry, int accessedVpn, boolean isCoff){
+	public static TranslationEntry raisePageFault(VMProcess process, TranslationEntry entry, int accessedVpn){
 		
 		Coff coff = process.getCoff();
-		if(numPins == invertedPhysicalPageTable.length){	// all being used
+		int[] shared = process.sharedFrames;
+		if(shared != null && entry.readOnly == true && attachShared(process, entry, accessedVpn)){
+			return entry;
+		}
+		// A page with no contents anywhere yet starts out zeroed.
+		int spn = process.getSwapPage(accessedVpn);
+		boolean demandZero = spn == -1 && process.getCoffSection(accessedVpn) == -1
+				&& process.isMapped(accessedVpn) == false;
+
+		// Ask the replacement policy for victims until a frame is free. The
+		// lock is held until the page is loaded: the load can block, and
+		// another process faulting meanwhile must neither take the frame
+		// as a victim nor refill readFrames under a pending read.
+		clockLock.acquire();
+		reserveFrame();
+
+		// Get a free page and set the entry's ppn to it. Frames zeroed ahead
+		// of time are kept for demand-zero pages while other frames last.
+		boolean zeroed = zeroedPages.isEmpty() == false && (demandZero || freePages.isEmpty());
+		int victimPageNumber = (zeroed ? zeroedPages : freePages).remove(0).intValue();
+		//System.out.println("VICTIM IS " + victimPageNumber);
+		mapFrame(victimPageNumber, process, accessedVpn, entry);
+		entry.ppn = victimPageNumber;
+		entry.valid = true;
+		entry.dirty = false;
+
+		// only a fault that continues the previous one pays for read-ahead
+		boolean sequential = (accessedVpn == process.nextSequentialVpn);
+		int count = 1;
+		if(demandZero)
+		{
+			// stack, argument and uninitialized data pages
+			if(zeroed == false){
+				byte[] memory = Machine.processor().getMemory();
+				java.util.Arrays.fill(memory, entry.ppn*pageSize, (entry.ppn+1)*pageSize, (byte) 0);
+			}else{
+				Machine.stats().numPrezeroedFills++;
+			}
+			Machine.stats().numZeroFills++;
+		}
+		else if(spn != -1)
+		{
+			// Replace chosen physical page with swap page. The slot stays
+			// allocated so a clean copy can be dropped on eviction.
+			readFrames[0] = entry.ppn;
+			if(sequential){
+				count = prefetch(process, accessedVpn, spn);
+			}
+			SwapFile.readPages(spn, readFrames, count);
+			Machine.stats().numSwapReads += count;
+			Machine.stats().numSwapReadOps++;
+		}
+		else if(process.getCoffSection(accessedVpn) != -1)
+		{
+			//System.out.println("READING FROM COFF " + accessedVpn);
+			readFrames[0] = entry.ppn;
+			if(sequential){
+				count = prefetch(process, accessedVpn, -1);
+			}
+			for(int i = 0; i < count; i++){
+				CoffSection section = coff.getSection(process.getCoffSection(accessedVpn + i));
+				section.loadPage(accessedVpn + i - section.getFirstVPN(), readFrames[i]);
+				if(shared != null && section.isReadOnly()){
+					shareFrame(readFrames[i], shared);
+				}
+			}
+		}
+		else
+		{
+			process.readMappedPage(accessedVpn, entry.ppn);
+			Machine.stats().numMappedReads++;
+		}
+		process.nextSequentialVpn = accessedVpn + count;
+		clockLock.release();
+
+		if(cleanerLock != null && freePages.size() + zeroedPages.size() < lowWater){
+			wakeCleaner();
+		}
+
+		return entry;
+	}
+
+	/*
+	 * Evicts until a frame is free. Callers hold clockLock. If every frame
+	 * the policy could evict is pinned, the lock is let go until a page is
+	 * unpinned, since the cleaner needs it to drop its pins.
+	 */
+	private static void reserveFrame(){
+		while(freePages.isEmpty() && zeroedPages.isEmpty()){
+			int unpins = numUnpins;
+			if(evictCluster()){
+				continue;
+			}
 			memoryLock.acquire();
-			allPinned.sleep();
+			clockLock.release();
+			while(numUnpins == unpins){
+				allPinned.sleep();
+			}
 			memoryLock.release();
+			clockLock.acquire();
 		}
+	}
+
+	/*
+	 * Evicts the policy's next victim. A dirty victim is written out
+	 * together with the policy's following victims while they are dirty
+	 * too, up to clusterSize pages in one run of swap slots; the first
+	 * clean victim after them is freed as well and ends the run. A dirty
+	 * page of a mapped file goes back to its file instead, and also ends
+	 * the run. Returns false, evicting nothing, if every page is pinned.
+	 */
+	private static boolean evictCluster(){
+		int count = 0;
+		boolean freed = false;
+		while(count < clusterSize){
+			int ppn = policy.selectVictim();
+			if(ppn == -1){
+				break;		// everything left is pinned
+			}
+			PhysicalPageInfo page = invertedPhysicalPageTable[ppn];
+			// VMProcess.TLBLock.acquire();
+			invalidateFrame(ppn);
+			// VMProcess.TLBLock.release();
+			if(page.translationEntry.dirty == false || writeMapped(ppn)){
+				releaseFrame(ppn);
+				freed = true;
+				break;
+			}
+			clusterFrames[count++] = ppn;
+		}
+		if(count == 0){
+			return freed;
+		}
+
+		writeBack(clusterFrames, count);
+		for(int i = 0; i < count; i++){
+			releaseFrame(clusterFrames[i]);
+		}
+		return true;
+	}
+
+	/*
+	 * Writes the dirty pages in frames[0..count-1] to one new run of swap
+	 * slots and marks them clean. Every process sharing a frame gets a
+	 * reference to its slot. Callers hold clockLock.
+	 */
+	private static void writeBack(int[] frames, int count){
+		// the old copies in swap are stale; the run replaces them
+		for(int i = 0; i < count; i++){
+			PhysicalPageInfo page = invertedPhysicalPageTable[frames[i]];
+			for(VMProcess mapper : mappers(page)){
+				SwapFile.free(mapper.getSwapPage(page.vpn));
+			}
+			// cleared before the copy, so a write racing with it re-dirties
+			clearDirty(frames[i]);
+		}
+		int spn = SwapFile.allocate(count);
+		SwapFile.writePages(spn, frames, count);
+		Machine.stats().numSwapWrites += count;
+		Machine.stats().numSwapWriteOps++;
+		for(int i = 0; i < count; i++){
+			PhysicalPageInfo page = invertedPhysicalPageTable[frames[i]];
+			List<VMProcess> mappers = mappers(page);
+			for(int j = 0; j < mappers.size(); j++){
+				if(j > 0){
+					SwapFile.share(spn + i);
+				}
+				mappers.get(j).setSwapPage(page.vpn, spn + i);
+			}
+		}
+	}
+
+	/* the processes mapping a frame: its sharers, or else its one owner */
+	private static List<VMProcess> mappers(PhysicalPageInfo page){
+		if(page.sharers != null){
+			return page.sharers;
+		}
+		return Collections.singletonList(page.process);
+	}
+
+	/*
+	 * Writes a page of a mapped file home to the file and marks it clean.
+	 * Returns false, writing nothing, if the page is not file-backed.
+	 * Callers hold clockLock.
+	 */
+	private static boolean writeMapped(int ppn){
+		PhysicalPageInfo page = invertedPhysicalPageTable[ppn];
+		if(page.process.isMapped(page.vpn) == false){
+			return false;
+		}
+		clearDirty(ppn);
+		page.process.writeMappedPage(page.vpn, ppn);
+		Machine.stats().numMappedWrites++;
+		return true;
+	}
+
+	/**
+	 * Drop the frame, if any, holding a page of a mapped file that the
+	 * process is unmapping, first writing the page to the file if it is
+	 * dirty.
+	 */
+	static void releaseMappedPage(VMProcess process, int vpn){
+		clockLock.acquire();
+		int ppn = lookupSettledFrame(process, vpn);
+		if(ppn != -1){
+			invalidateFrame(ppn);
+			if(invertedPhysicalPageTable[ppn].translationEntry.dirty == true){
+				writeMapped(ppn);
+			}
+			policy.remove(ppn);
+			releaseFrame(ppn);
+		}
+		clockLock.release();
+	}
+
+	/* clears the dirty bit of a frame in its page table entries and the TLB */
+	private static void clearDirty(int ppn){
+		PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+		info.translationEntry.dirty = false;
+		if(info.sharers != null){
+			for(int i = 0; i < info.sharers.size(); i++){
+				info.sharers.get(i).getEntry(info.vpn).dirty = false;
+			}
+		}
+
+		List<VMProcess> mappers = tlbMappers(info);
+		for(int i = 0; i < mappers.size(); i++){
+			int slot = findTLBSlot(ppn, mappers.get(i));
+			if(slot != -1 && tlbEntry.dirty == true){
+				tlbEntry.dirty = false;
+				Machine.processor().writeTLBEntry(slot, tlbEntry);
+			}
+		}
+	}
+
+	/*
+	 * The processes whose TLB entries for a frame need checking. With ASIDs
+	 * each mapper may have its own entry; without them the TLB holds one
+	 * address space at a time, so a single lookup by vpn covers the frame.
+	 */
+	private static List<VMProcess> tlbMappers(PhysicalPageInfo page){
+		if(page.process == null){
+			return Collections.emptyList();
+		}
+		if(Machine.processor().hasASIDs() == false){
+			return Collections.singletonList(page.process);
+		}
+		return mappers(page);
+	}
+
+	/*
+	 * Finds the TLB entry a mapper has for a frame through the processor's
+	 * vpn index, leaving it in tlbEntry. Returns its slot, or -1 if the
+	 * mapper has no entry pointing at the frame.
+	 */
+	private static int findTLBSlot(int ppn, VMProcess mapper){
+		Processor processor = Machine.processor();
+		int slot = processor.findTLBEntry(invertedPhysicalPageTable[ppn].vpn, mapper.processID());
+		if(slot == -1){
+			return -1;
+		}
+		processor.readTLBEntry(slot, tlbEntry);
+		return tlbEntry.ppn == ppn ? slot : -1;
+	}
+
+	/*
+	 * Idle task that zeroes free frames until zeroPoolSize of them are
+	 * ready for demand-zero faults. It runs only when every thread is
+	 * blocked, so the zeroing costs no simulated time and never races
+	 * with a fault for the free list.
+	 */
+	private static void refillZeroPool(){
+		byte[] memory = Machine.processor().getMemory();
+		while(zeroedPages.size() < zeroPoolSize && freePages.isEmpty() == false){
+			int ppn = freePages.removeLast().intValue();
+			java.util.Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+			zeroedPages.add(ppn);
+		}
+	}
+
+	private static void wakeCleaner(){
+		cleanerLock.acquire();
+		cleanerWanted = true;
+		cleanerReady.wake();
+		cleanerLock.release();
+	}
+
+	/*
+	 * Body of the page cleaner thread. Each time free frames drop below
+	 * the low watermark, it writes back up to lowWater dirty frames that
+	 * are unpinned and not recently used, so the replacement policy finds
+	 * clean victims and faults skip the swap write.
+	 *
+	 * clockLock is held only to choose the frames and to record where
+	 * they went, not across the writes, so faults are not held up by a
+	 * cleaning pass. The frames stay pinned and marked as being cleaned
+	 * meanwhile: nothing evicts them, and freeFrame() and
+	 * releaseMappedPage() wait for them.
+	 */
+	private static void runCleaner(){
+		while(true){
+			cleanerLock.acquire();
+			while(cleanerWanted == false){
+				cleanerReady.sleep();
+			}
+			cleanerWanted = false;
+			cleanerLock.release();
 
-		// Run clock algorithm. Choose a victim.
-		//System.out.println("RUNNING CLOCK ALGORITHM");
-		while(freePages.isEmpty())
-		{
 			clockLock.acquire();
-			PhysicalPageInfo selectedPhysicalPage = invertedPhysicalPageTable[clockHand];
-	
-			// If process did not pin the selected physical page.
-			if(selectedPhysicalPage.pinCount == 0){
-				if(selectedPhysicalPage.translationEntry.used == true){
-					selectedPhysicalPage.translationEntry.used = false;
-				}else{
-					if(selectedPhysicalPage.process != null){
-						// VMProcess.TLBLock.acquire();
-						selectedPhysicalPage.process.syncTLBEntry(selectedPhysicalPage.translationEntry);
-						selectedPhysicalPage.process.invalidateEntry(selectedPhysicalPage.translationEntry);
-						// VMProcess.TLBLock.release();
-					}
- 
-					// If selected page has been modified, write the modified page to disk.
-					if(selectedPhysicalPage.translationEntry.dirty == true){
-						//System.out.println("WRITING TO SWAP " + clockHand);
-						selectedPhysicalPage.translationEntry.vpn = SwapFile.insertPage(clockHand); // Should change in the process' page table as well.
+			int count = 0;
+			for(int i = 0; i < invertedPhysicalPageTable.length && count < lowWater; i++){
+				int ppn = cleanerHand;
+				cleanerHand = (cleanerHand+1)%invertedPhysicalPageTable.length;
+				PhysicalPageInfo page = invertedPhysicalPageTable[ppn];
+				if(page.process == null || isPinned(ppn)
+						|| isUsed(ppn) || isDirty(ppn) == false){
+					continue;
+				}
+				// the old copies in swap are stale; the new slot replaces them
+				if(page.process.isMapped(page.vpn) == false){
+					for(VMProcess mapper : mappers(page)){
+						SwapFile.free(mapper.getSwapPage(page.vpn));
+						mapper.setSwapPage(page.vpn, -1);
 					}
+				}
+				// cleared before the copy, so a write racing with it re-dirties
+				clearDirty(ppn);
+				pinPage(ppn);
+				page.cleaning = true;
+				cleanerFrames[count++] = ppn;
+			}
+			clockLock.release();
 
-					// Finally, add the selected page number to free pages.
-					freePages.add(clockHand);		
+			// write runs of swap-backed frames, and file pages one by one
+			int[] spns = new int[count];
+			int start = 0;
+			while(start < count){
+				PhysicalPageInfo page = invertedPhysicalPageTable[cleanerFrames[start]];
+				if(page.process.isMapped(page.vpn)){
+					page.process.writeMappedPage(page.vpn, cleanerFrames[start]);
+					Machine.stats().numMappedWrites++;
+					spns[start++] = -1;
+					continue;
+				}
+				int end = start + 1;
+				while(end < count && end - start < clusterSize){
+					PhysicalPageInfo next = invertedPhysicalPageTable[cleanerFrames[end]];
+					if(next.process.isMapped(next.vpn)){
+						break;
+					}
+					end++;
+				}
+				int spn = SwapFile.allocate(end - start);
+				SwapFile.writePages(spn, cleanerFrames, start, end - start);
+				Machine.stats().numSwapWrites += end - start;
+				Machine.stats().numSwapWriteOps++;
+				for(int i = start; i < end; i++){
+					spns[i] = spn + i - start;
 				}
+				start = end;
 			}
 
-			clockHand = (clockHand+1)%invertedPhysicalPageTable.length; // Increment the clock.
+			// the processes sharing a frame may have changed meanwhile, but
+			// none of them can have given it up: freeFrame() waits for the
+			// pass, and an exiting process frees its swap slots only after
+			// its frames
+			clockLock.acquire();
+			for(int i = 0; i < count; i++){
+				PhysicalPageInfo page = invertedPhysicalPageTable[cleanerFrames[i]];
+				if(spns[i] != -1){
+					List<VMProcess> mappers = mappers(page);
+					for(int j = 0; j < mappers.size(); j++){
+						if(j > 0){
+							SwapFile.share(spns[i]);
+						}
+						mappers.get(j).setSwapPage(page.vpn, spns[i]);
+					}
+				}
+				page.cleaning = false;
+				unpinPage(cleanerFrames[i]);
+			}
+			Machine.stats().numPagesCleaned += count;
+			cleaningDone.wakeAll();
 			clockLock.release();
 		}
+	}
+
+	/*
+	 * Returns the frame holding a page, as lookupFrame() does, but first
+	 * waits for the cleaner if it is writing the frame out. Callers hold
+	 * clockLock.
+	 */
+	private static int lookupSettledFrame(VMProcess process, int vpn){
+		int ppn = lookupFrame(process, vpn);
+		while(ppn != -1 && invertedPhysicalPageTable[ppn].cleaning){
+			cleaningDone.sleep();
+			ppn = lookupFrame(process, vpn);
+		}
+		return ppn;
+	}
 
-		//System.out.println("FREE PAGES ARE : ");
-		//for(Integer i : freePages)
-		//{
-		//	System.out.print(i + ", ");
-		//}
+	/* invalidates every mapping of a frame, syncing the TLB bits back */
+	private static void invalidateFrame(int ppn){
+		PhysicalPageInfo page = invertedPhysicalPageTable[ppn];
+		if(page.sharers != null){
+			for(int i = 0; i < page.sharers.size(); i++){
+				VMProcess sharer = page.sharers.get(i);
+				sharer.invalidateEntry(sharer.getEntry(page.vpn));
+			}
+		}else{
+			page.process.invalidateEntry(page.translationEntry);
+		}
+	}
 
-		// Get a free page and set the entry's ppn to it.
-		int victimPageNumber = freePages.remove(0).intValue();
-		//System.out.println("FREE PAGES SIZE IS : " + freePages.size());
-		//System.out.println("VICTIM IS " + victimPageNumber);
-		invertedPhysicalPageTable[victimPageNumber].translationEntry = entry; 
-		invertedPhysicalPageTable[victimPageNumber].process = process;
-		entry.ppn = victimPageNumber;
+	/**
+	 * Return the shared frame table for the executable with the specified
+	 * name, or <tt>null</tt> if text sharing is off. Processes running the
+	 * same executable, byte for byte, get the same table, which maps each
+	 * read-only COFF page to the frame caching it, or -1.
+	 */
+	static int[] getSharedFrames(String name, int numPages){
+		if(sharedText == null || name == null){
+			return null;
+		}
+		// the stub file system has no inode numbers, so an executable is
+		// known by a checksum of its contents: its COFF headers, its
+		// read-only sections and its data. A rebuilt binary that reuses
+		// the name gets a table of its own.
+		OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+		if(file == null){
+			return null;
+		}
+		byte[] contents = new byte[file.length()];
+		Lib.strictReadFile(file, 0, contents, 0, contents.length);
+		file.close();
+		CRC32 checksum = new CRC32();
+		checksum.update(contents, 0, contents.length);
+		String identity = name + "#" + contents.length + "#" + Long.toHexString(checksum.getValue());
+
+		clockLock.acquire();
+		int[] frames = sharedText.get(identity);
+		if(frames == null){
+			frames = new int[numPages];
+			java.util.Arrays.fill(frames, -1);
+			sharedText.put(identity, frames);
+		}
+		clockLock.release();
+		return frames;
+	}
+
+	/*
+	 * Maps the cached copy of a read-only page into the faulting process,
+	 * if there is one. Returns false if the page has to be loaded.
+	 */
+	private static boolean attachShared(VMProcess process, TranslationEntry entry, int vpn){
+		clockLock.acquire();
+		int ppn = process.sharedFrames[vpn];
+		if(ppn == -1){
+			clockLock.release();
+			return false;
+		}
+		PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+		info.sharers.add(process);
+		if(info.process == null){
+			info.process = process;
+			info.translationEntry = entry;
+		}
+		invertedPageTable.put(new TEKey(vpn, process.processID()), new Integer(ppn));
+		entry.ppn = ppn;
 		entry.valid = true;
 		entry.dirty = false;
+		policy.referenced(ppn);
+		sharedHits++;
+		clockLock.release();
+		return true;
+	}
 
-		// we are switching the entry to this new physical space.
-		if(isCoff == false && entry.vpn != accessedVpn)
-		{
-			SwapFile.readPage(entry.vpn, entry.ppn); // Replace chosen physical page with swap page.
-			SwapFile.free(entry.vpn);
-			entry.vpn = accessedVpn;
+	/* enters a freshly loaded read-only page in the shared text cache */
+	private static void shareFrame(int ppn, int[] shared){
+		PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+		info.sharedFrames = shared;
+		info.sharers = new ArrayList<VMProcess>();
+		info.sharers.add(info.process);
+		shared[info.vpn] = ppn;
+	}
+
+	/* unmaps an evicted frame and puts it on the free list */
+	private static void releaseFrame(int ppn){
+		unmapFrame(ppn);
+		freePages.add(ppn);
+	}
+
+	/*
+	 * Maps free frames for the pages after vpn that can come in with it:
+	 * pages in the adjacent swap slots when spn is a slot, or unloaded
+	 * COFF pages otherwise. Only frames already on the free list are used,
+	 * so read-ahead never evicts. Fills readFrames[1..] and returns the
+	 * total number of pages to load, including vpn itself. Callers hold
+	 * clockLock.
+	 */
+	private static int prefetch(VMProcess process, int vpn, int spn){
+		int count = 1;
+		while(count <= readAhead && !freePages.isEmpty()){
+			int next = vpn + count;
+			if(next >= process.getNumPages()){
+				break;
+			}
+			TranslationEntry entry = process.getEntry(next);
+			if(entry.valid == true){
+				break;
+			}
+			if(spn != -1){
+				if(process.getSwapPage(next) != spn + count){
+					break;
+				}
+			}else if(process.getSwapPage(next) != -1 || process.getCoffSection(next) == -1
+					|| (process.sharedFrames != null && process.sharedFrames[next] != -1)){
+				break;
+			}
+			int ppn = freePages.remove(0).intValue();
+			mapFrame(ppn, process, next, entry);
+			invertedPhysicalPageTable[ppn].prefetched = true;
+			entry.ppn = ppn;
+			entry.vpn = next;
+			entry.used = false;
+			entry.dirty = false;
+			entry.valid = true;
+			readFrames[count++] = ppn;
 		}
-		else
-		{	
-			// we set the coff vpn to negative if it belonged to a coff
-			//System.out.println("READING FROM COFF " + entry.vpn);
-			for(int s = 0; s < coff.getNumSections(); s++)
-			{
-				CoffSection section = coff.getSection(s);
-				for(int j = 0; j < section.getLength(); j++)
-				{
-					if(section.getFirstVPN() + j == entry.vpn)
-					{
-						section.loadPage(j, entry.ppn);
-					}
+		Machine.stats().numPrefetches += count - 1;
+		return count;
+	}
+
+	/**
+	 * Note that a resident page was referenced, crediting read-ahead if the
+	 * page was brought in early.
+	 */
+	static void touchFrame(int ppn){
+		PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+		if(info.prefetched){
+			info.prefetched = false;
+			Machine.stats().numPrefetchHits++;
+		}
+		policy.referenced(ppn);
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified frame is pinned and must not be
+	 * evicted.
+	 */
+	static boolean isPinned(int ppn){
+		return invertedPhysicalPageTable[ppn].pinCount != 0;
+	}
+
+	/**
+	 * Return whether the page in the specified frame was referenced since
+	 * the last call, and clear its used bit, both in the page table and in
+	 * any TLB entry that maps the frame.
+	 */
+	static boolean testAndClearUsed(int ppn){
+		PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+		boolean used = info.translationEntry.used;
+		info.translationEntry.used = false;
+		// a shared page counts as used if any of its sharers used it
+		if(info.sharers != null){
+			for(int i = 0; i < info.sharers.size(); i++){
+				TranslationEntry pte = info.sharers.get(i).getEntry(info.vpn);
+				used |= pte.used;
+				pte.used = false;
+			}
+		}
+
+		List<VMProcess> mappers = tlbMappers(info);
+		for(int i = 0; i < mappers.size(); i++){
+			int slot = findTLBSlot(ppn, mappers.get(i));
+			if(slot != -1 && tlbEntry.used == true){
+				used = true;
+				tlbEntry.used = false;
+				Machine.processor().writeTLBEntry(slot, tlbEntry);
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * Return whether the page in the specified frame was referenced since
+	 * its used bit was last cleared, leaving the bit alone.
+	 */
+	static boolean isUsed(int ppn){
+		PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+		if(info.translationEntry.used == true){
+			return true;
+		}
+		List<VMProcess> mappers = tlbMappers(info);
+		for(int i = 0; i < mappers.size(); i++){
+			if(findTLBSlot(ppn, mappers.get(i)) != -1 && tlbEntry.used == true){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the page in the specified frame has been
+	 * written since it was last loaded or written to swap.
+	 */
+	static boolean isDirty(int ppn){
+		PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+		if(info.translationEntry.dirty == true){
+			return true;
+		}
+		List<VMProcess> mappers = tlbMappers(info);
+		for(int i = 0; i < mappers.size(); i++){
+			if(findTLBSlot(ppn, mappers.get(i)) != -1 && tlbEntry.dirty == true){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return the process whose page currently occupies the specified
+	 * physical page, or <tt>null</tt> if it is not in use.
+	 */
+	static VMProcess getOwner(int ppn){
+		return invertedPhysicalPageTable[ppn].process;
+	}
+
+	/**
+	 * Return the physical page holding the specified virtual page of a
+	 * process, or -1 if that page is not resident.
+	 */
+	static int lookupFrame(VMProcess process, int vpn){
+		Integer ppn = invertedPageTable.get(new TEKey(vpn, process.processID()));
+		if(ppn == null){
+			return -1;
+		}
+		return ppn.intValue();
+	}
+
+	/* records the frame in both the (pid, vpn) index and the per-frame table */
+	private static void mapFrame(int ppn, VMProcess process, int vpn, TranslationEntry entry){
+		PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+		info.process = process;
+		info.vpn = vpn;
+		info.translationEntry = entry;
+		TEKey key = new TEKey(vpn, process.processID());
+		invertedPageTable.put(key, new Integer(ppn));
+		policy.pageIn(ppn, key);
+	}
+
+	/* forgets whatever page the frame held; the frame itself is not freed */
+	private static void unmapFrame(int ppn){
+		PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+		if(info.sharers != null){
+			for(int i = 0; i < info.sharers.size(); i++){
+				invertedPageTable.remove(new TEKey(info.vpn, info.sharers.get(i).processID()));
+			}
+			if(info.sharedFrames != null){
+				info.sharedFrames[info.vpn] = -1;
+				info.sharedFrames = null;
+			}
+			info.sharers = null;
+		}
+		else if(info.process != null){
+			invertedPageTable.remove(new TEKey(info.vpn, info.process.processID()));
+		}
+		info.process = null;
+		info.prefetched = false;
+		info.translationEntry = new TranslationEntry();
+	}
+
+	/**
+	 * Give back a frame held by an exiting process. A shared text page
+	 * stays cached, unmapped from just this process; the replacement
+	 * policy reclaims it once nobody maps it. A frame shared after a fork
+	 * stays with the processes still sharing it. The frame is looked up
+	 * under the lock: one found earlier may since have gone to another
+	 * process.
+	 */
+	static void freeFrame(VMProcess process, int vpn){
+		clockLock.acquire();
+		int ppn = lookupSettledFrame(process, vpn);
+		if(ppn == -1){
+			clockLock.release();
+			return;
+		}
+		PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+		if(info.sharers != null && info.sharedFrames == null){
+			leaveFrame(process, vpn, info);
+		}else if(info.sharers != null){
+			info.sharers.remove(process);
+			invertedPageTable.remove(new TEKey(vpn, process.processID()));
+			if(info.process == process){
+				// another sharer's entry now stands for the frame
+				if(info.sharers.isEmpty()){
+					info.process = null;
+					info.translationEntry = new TranslationEntry();
+				}else{
+					info.process = info.sharers.get(0);
+					info.translationEntry = info.process.getEntry(vpn);
 				}
 			}
+		}else{
+			policy.remove(ppn);
+			unmapFrame(ppn);
+			freePages.add(ppn);
 		}
+		clockLock.release();
+	}
 
-		return entry;
+	/**
+	 * Give a child being forked the parent's copy of a page: the frame
+	 * holding it, if it is resident, and its swap slot, if it has one. The
+	 * two processes share both until one of them writes the page.
+	 */
+	static void forkPage(VMProcess parent, VMProcess child, int vpn){
+		clockLock.acquire();
+		int spn = parent.getSwapPage(vpn);
+		if(spn != -1){
+			SwapFile.share(spn);
+			child.setSwapPage(vpn, spn);
+		}
+
+		int ppn = lookupFrame(parent, vpn);
+		if(ppn != -1){
+			PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+			if(info.sharers == null){
+				info.sharers = new ArrayList<VMProcess>();
+				info.sharers.add(info.process);
+			}
+			info.sharers.add(child);
+			invertedPageTable.put(new TEKey(vpn, child.processID()), new Integer(ppn));
+			TranslationEntry entry = child.getEntry(vpn);
+			entry.ppn = ppn;
+			entry.valid = true;
+		}
+		clockLock.release();
+	}
+
+	/**
+	 * Make a copy-on-write page of a process writable, first copying it
+	 * into a frame of its own if other processes still share its frame. A
+	 * page that is not resident needs no copy: it is loaded into a private
+	 * frame when next touched.
+	 */
+	static void breakCopyOnWrite(VMProcess process, int vpn){
+		TranslationEntry entry = process.getEntry(vpn);
+		clockLock.acquire();
+		int ppn = lookupFrame(process, vpn);
+		if(ppn != -1){
+			// drops the read-only copies in the TLB
+			process.invalidateEntry(entry);
+			PhysicalPageInfo info = invertedPhysicalPageTable[ppn];
+			if(info.sharers != null){
+				Lib.assertTrue(info.sharedFrames == null);
+				// the original must survive the eviction that frees a frame
+				pinPage(ppn);
+				reserveFrame();
+				unpinPage(ppn);
+			}
+			// the other sharers may have left while reserveFrame() waited
+			if(info.sharers != null){
+				int copy = (freePages.isEmpty() ? zeroedPages : freePages).remove(0).intValue();
+				byte[] memory = Machine.processor().getMemory();
+				System.arraycopy(memory, ppn*pageSize, memory, copy*pageSize, pageSize);
+
+				leaveFrame(process, vpn, info);
+				mapFrame(copy, process, vpn, entry);
+				entry.ppn = copy;
+				// the copy no longer matches a swap slot it may share
+				entry.dirty = true;
+				Machine.stats().numPagesCopied++;
+			}
+			entry.valid = true;
+		}
+		entry.readOnly = false;
+		clockLock.release();
+	}
+
+	/*
+	 * Removes a process from the sharers of a frame shared after a fork. A
+	 * frame left with one sharer becomes that process's private frame.
+	 */
+	private static void leaveFrame(VMProcess process, int vpn, PhysicalPageInfo info){
+		info.sharers.remove(process);
+		invertedPageTable.remove(new TEKey(vpn, process.processID()));
+		if(info.sharers.size() == 1){
+			info.process = info.sharers.get(0);
+			info.sharers = null;
+		}else if(info.process == process){
+			info.process = info.sharers.get(0);
+		}
+		info.translationEntry = info.process.getEntry(vpn);
+	}
+
+	/**
+	 * Write a page of a mapped file back to the file if it is resident and
+	 * dirty, so that a process reading the file sees it.
+	 */
+	static void syncMappedPage(VMProcess process, int vpn){
+		clockLock.acquire();
+		int ppn = lookupFrame(process, vpn);
+		if(ppn != -1 && isDirty(ppn)){
+			writeMapped(ppn);
+		}
+		clockLock.release();
 	}
 
 	public static void pinPage(int ppn){
@@ -152,6 +932,7 @@ public class VMKernel extends UserKernel {
 		invertedPhysicalPageTable[ppn].pinCount--;
 		numPins--;
 		memoryLock.acquire();
+		numUnpins++;
 		allPinned.wakeAll();
 		memoryLock.release();
 	}
@@ -159,20 +940,51 @@ public class VMKernel extends UserKernel {
 	// This is the inverted table, indexed by physical page number.
 	protected static PhysicalPageInfo[] invertedPhysicalPageTable;
 	private static int numPins = 0;
+	// Counts unpins, so a fault waiting in reserveFrame() misses none.
+	private static int numUnpins = 0;
 	private static Condition allPinned;
 	private static Lock memoryLock;
-	private static int clockHand = 0;
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 	private static final char dbgVM = 'v';
+	// Guards the frame tables and free list while victims are chosen.
 	static Lock clockLock;
+	private static ReplacementPolicy policy;
+	private static TranslationEntry tlbEntry = new TranslationEntry();
+
+	// Page cleaner state; cleanerLock is null when the cleaner is off.
+	private static Lock cleanerLock;
+	private static Condition cleanerReady;
+	private static boolean cleanerWanted = false;
+	// Free frame count below which faults wake the cleaner.
+	private static int lowWater;
+	private static int cleanerHand = 0;
+	private static int[] cleanerFrames;
+	// Signalled on clockLock when the cleaner has finished its frames.
+	private static Condition cleaningDone;
+
+	// Free frames already zeroed, and how many the idle task keeps ready.
+	private static LinkedList<Integer> zeroedPages;
+	private static int zeroPoolSize;
+
+	// Shared frame tables by executable identity; null when sharing is off.
+	private static HashMap<String, int[]> sharedText;
+	private static int sharedHits = 0;
 	private class PhysicalPageInfo
 	{
 		public VMProcess process;
+		public int vpn;
 		public TranslationEntry translationEntry;
 		public int pinCount;
 		public boolean freeWhenUnpinned;
 		public boolean used;
+		public boolean prefetched;
+		// Set while the cleaner is writing the frame out.
+		public boolean cleaning;
+		// Set while the frame is in the shared text cache: the cache table
+		// it is listed in, and every process that maps it.
+		public int[] sharedFrames;
+		public ArrayList<VMProcess> sharers;
 
 		public PhysicalPageInfo()
 		{
@@ -183,6 +995,18 @@ public class VMKernel extends UserKernel {
 			this.used = true;
 		}
 	}
-	// public static HashTable<TEKey, ProcessTranslationEntry> invertedPageTable;
+	// Maps (pid, vpn) to the physical page holding it; the reverse of
+	// invertedPhysicalPageTable.
+	private static HashMap<TEKey, Integer> invertedPageTable;
+
+	// Most dirty victims written to swap in one run.
+	private static int clusterSize;
+	// Most pages read in ahead of a sequential fault.
+	private static int readAhead;
+	// Frames of the run being paged out, and of the run being paged in.
+	// Both are only used under clockLock.
+	private static int[] clusterFrames;
+	private static int[] readFrames;
+	private static final int pageSize = Processor.pageSize;
 }
 
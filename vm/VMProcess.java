@@ -17,6 +17,15 @@ public class VMProcess extends UserProcess {
 		this.pageTableLock = new Lock();
 	}
 
+	/**
+	 * Execute the specified program, remembering its name so read-only pages
+	 * can be shared with other processes running the same executable.
+	 */
+	public boolean execute(String name, String[] args) {
+		this.executableName = name;
+		return super.execute(name, args);
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -24,20 +33,13 @@ public class VMProcess extends UserProcess {
 	public void saveState() {
 		System.out.println("Process " + this.processID() + " IS CALLING SAVE STATE");
 		boolean status = Machine.interrupt().disable();
-		TLBLock.acquire();
-		for(int i = 0; i < Machine.processor().getTLBSize(); i++){
-			TranslationEntry entry = Machine.processor().readTLBEntry(i);
-			if(entry.valid == true){
-				// Sync
-				this.syncTLBEntry(entry);
-
-				// Flush
-				entry.valid = false;
-				Machine.processor().writeTLBEntry(i,entry);
-			}
+		// With ASID tags our entries can stay in the TLB. They stop matching
+		// as soon as the next process sets its own ASID. No TLBLock: we may
+		// be switching out of a TLB miss that holds it, and interrupts are
+		// off anyway.
+		if(Machine.processor().hasASIDs() == false){
+			this.flushTLB();
 		}
-		
-		TLBLock.release();
 		Machine.interrupt().setStatus(status);
 		System.out.println("Process " + this.processID() + " is finished saving state.");
 	}
@@ -49,16 +51,35 @@ public class VMProcess extends UserProcess {
 		
 		// TLBLock.acquire();
 		//System.out.println("INVALIDATING ENTRY " + e.vpn + "=>"+e.ppn);
+		TranslationEntry entry = tlbEntry;
 		for(int i = 0; i < Machine.processor().getTLBSize(); i++){
-			TranslationEntry entry = Machine.processor().readTLBEntry(i);
-			if(entry.ppn == e.ppn){
-				entry.valid = false;
-
-				Machine.processor().writeTLBEntry(i,entry);
+			Machine.processor().readTLBEntry(i, entry);
+			if(entry.valid == true && entry.ppn == e.ppn){
+				// the TLB may hold the only up-to-date used and dirty bits
+				this.syncTLBEntry(entry);
+				Machine.processor().invalidateTLBEntry(i);
 			}
 		}
 		// TLBLock.release();
 	}
+
+	/**
+	 * Sync and invalidate every TLB entry that belongs to this process.
+	 */
+	private void flushTLB(){
+		Processor processor = Machine.processor();
+		TranslationEntry entry = tlbEntry;
+		for(int i = 0; i < processor.getTLBSize(); i++){
+			processor.readTLBEntry(i, entry);
+			if(entry.valid == true && (processor.hasASIDs() == false || entry.asid == this.processID())){
+				// Sync
+				this.syncTLBEntry(entry);
+
+				// Flush
+				processor.invalidateTLBEntry(i);
+			}
+		}
+	}
 	
 	/**
 	 * Restore the state of this process after a context switch. Called by
@@ -66,6 +87,9 @@ public class VMProcess extends UserProcess {
 	 */
 	public void restoreState() {
 	//	super.restoreState();
+		if(Machine.processor().hasASIDs()){
+			Machine.processor().setASID(this.processID());
+		}
 	}
 
 	/**
@@ -80,13 +104,26 @@ public class VMProcess extends UserProcess {
 		this.pageTableLock.acquire();
 		for(int vpn = 0; vpn < numPages; vpn++){
 			pageTable[vpn] = new TranslationEntry();
+			pageTable[vpn].asid = this.processID();
 		}
 
+		coffSections = new int[numPages];
+		java.util.Arrays.fill(coffSections, -1);
+		swapPages = new int[numPages];
+		java.util.Arrays.fill(swapPages, -1);
+		mappings = new Mapping[numPages];
+		copyOnWrite = new boolean[numPages];
+		sharedFrames = VMKernel.getSharedFrames(executableName, numPages);
+
 		// maps out coff sections
 		for(int s = 0; s < coff.getNumSections(); s++){
 			CoffSection section = coff.getSection(s);
 			for(int j = 0; j < section.getLength(); j++){
 				int vpn = section.getFirstVPN() + j;
+				// uninitialized data is demand-zero, like the stack
+				if(section.isInitialzed()){
+					coffSections[vpn] = s;
+				}
 				pageTable[vpn].used = false;
 				pageTable[vpn].dirty = false;
 				pageTable[vpn].valid = false;
@@ -96,7 +133,6 @@ public class VMProcess extends UserProcess {
 		}
 
 		// maps out stack pages on top 
-		// rule - vpns are negative for coffs
 		for(int s = numPages - (stackPages + 1); s < numPages; s++){
 			pageTable[s].valid = false;
 			pageTable[s].readOnly = false;
@@ -114,14 +150,32 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		// entries tagged with our ASID would otherwise outlive us
+		if(Machine.processor().hasASIDs()){
+			boolean status = Machine.interrupt().disable();
+			this.flushTLB();
+			Machine.interrupt().setStatus(status);
+		}
+
 		this.pageTableLock.acquire();
-		for(int i = 0; i < pageTable.length; i++){
-			if(pageTable[i].readOnly == false && pageTable[i].valid == false){
-				SwapFile.free(pageTable[i].vpn);	// free swap file space
+		// dirty file pages go back to their files before the frames go
+		for(int vpn = numPages; vpn < pageTable.length; vpn++){
+			if(mappings[vpn] != null){
+				this.unmapPage(vpn);
 			}
 		}
 
-		super.unloadSections();
+		// only resident pages hold a frame; the rest of the page table's
+		// ppns are stale. Frames go first: freeFrame() waits for one the
+		// cleaner is writing out, which then gives us a new swap slot.
+		for(int vpn = 0; vpn < pageTable.length; vpn++){
+			VMKernel.freeFrame(this, vpn);
+		}
+
+		for(int i = 0; i < pageTable.length; i++){
+			SwapFile.free(swapPages[i]);	// free swap file space
+			swapPages[i] = -1;
+		}
 		this.pageTableLock.release();
 	}
 
@@ -140,6 +194,10 @@ public class VMProcess extends UserProcess {
 			handleTLBMiss(processor.readRegister
 				(Processor.regBadVAddr));
 			break;
+		case Processor.exceptionReadOnly:
+			handleReadOnly(processor.readRegister
+				(Processor.regBadVAddr));
+			break;
 		default:
 			super.handleException(cause);
 			break;
@@ -148,32 +206,60 @@ public class VMProcess extends UserProcess {
 
 	public void handleTLBMiss(int vAddr){
 		System.out.println("Process " + this.processID() + " is handling TLB miss at vAddr " + vAddr);
+		int vpn = Processor.pageFromAddress(vAddr);
+		if(isValidPage(vpn) == false){
+			super.handleException(Processor.exceptionAddressError);
+			return;
+		}
 		boolean status = Machine.interrupt().disable();
                 TLBLock.acquire();
-		int vpn = Processor.pageFromAddress(vAddr);
 		TranslationEntry entry = handleTLE(vpn);
 		
-		int location = this.allocateTLBEntry();
+		int location = this.allocateTLBEntry(vpn);
 		Machine.processor().writeTLBEntry(location, entry);
 		TLBLock.release();
 		Machine.interrupt().setStatus(status);
 		System.out.println("Process " + this.processID() + " finished handling TLB miss at vpn " + vpn + " at location " + location);
 	}
 
+	/*
+	 * A write to a read-only page. A copy-on-write page is made writable,
+	 * copied first if it is still shared, and the write is retried; any
+	 * other page is really read-only, and the process dies.
+	 */
+	private void handleReadOnly(int vAddr){
+		int vpn = Processor.pageFromAddress(vAddr);
+		if(isValidPage(vpn) == false || copyOnWrite[vpn] == false){
+			super.handleException(Processor.exceptionReadOnly);
+			return;
+		}
+		this.copyPage(vpn);
+	}
+
+	/* ends copy-on-write for a page, before this process writes it */
+	private void copyPage(int vpn){
+		this.pageTableLock.acquire();
+		if(copyOnWrite[vpn]){
+			VMKernel.breakCopyOnWrite(this, vpn);
+			copyOnWrite[vpn] = false;
+		}
+		this.pageTableLock.release();
+	}
+
 	public TranslationEntry handleTLE(int vpn){
 		this.pageTableLock.acquire();
 		TranslationEntry entry = pageTable[vpn];
 		//System.out.println("ENTRY HAD A THING OF " + entry.vpn + "=>" + entry.ppn + " AND IT IS " + entry.valid);
 		if(entry.valid == false){
-			if(vpn < (numPages - stackPages - 1) && entry.dirty == false){
-				entry = VMKernel.raisePageFault(this,entry, vpn, true);
-			}else{
-				entry = VMKernel.raisePageFault(this, entry, vpn, false);	
-			}
+			Machine.stats().numPageFaults++;
+			entry = VMKernel.raisePageFault(this, entry, vpn);
 			entry.vpn = vpn;
 			pageTable[vpn] = entry;
-			pageTable[vpn].valid = true;
+			// left invalid if the page was evicted again while the fault
+			// was blocked; the caller then faults once more
 		//	System.out.println("HANDLED TLE WITH A " + pageTable[vpn].vpn + "=>" + pageTable[vpn].ppn + " AND IT IS " + pageTable[vpn].valid);
+		}else{
+			VMKernel.touchFrame(entry.ppn);
 		}
 		
 		this.pageTableLock.release();
@@ -181,19 +267,28 @@ public class VMProcess extends UserProcess {
 	}
 
 
-	private int allocateTLBEntry(){
-		TranslationEntry entry = null;
+	/* picks a TLB slot for vpn from the set it maps to */
+	private int allocateTLBEntry(int vpn){
+		Processor processor = Machine.processor();
+		TranslationEntry entry = tlbEntry;
+		int ways = processor.getTLBWays();
+		int first = processor.getTLBSet(vpn) * ways;
 		// TLBLock.acquire();
-		for(int i = 0; i < Machine.processor().getTLBSize();i++){
-			entry = Machine.processor().readTLBEntry(i);
+		for(int i = first; i < first + ways;i++){
+			processor.readTLBEntry(i, entry);
 			if(entry.valid == false){
 				return i;
 			}
 		}
 
-		int victim = Lib.random(Machine.processor().getTLBSize());
-		entry = Machine.processor().readTLBEntry(victim);
-		this.syncTLBEntry(entry);
+		int victim = first + Lib.random(ways);
+		processor.readTLBEntry(victim, entry);
+		// with ASIDs the victim may belong to another process
+		VMProcess owner = VMKernel.getOwner(entry.ppn);
+		if(owner == null){
+			owner = this;
+		}
+		owner.syncTLBEntry(entry);
 		// TLBLock.release();
 		return victim;
 	}
@@ -202,13 +297,12 @@ public class VMProcess extends UserProcess {
 	//	System.out.println("SYNC TLB for " + entry.vpn + "=>" + entry.ppn + " AND IT IS NOW " + entry.valid);
 		/* Chances are we may have to sync with swap file as well. */
 		// this.pageTableLock.acquire();
-		for(int i = 0; i < pageTable.length; i++){
-			if(pageTable[i].ppn == entry.ppn && pageTable[i].vpn == entry.vpn){
-				//pageTable[i].valid = entry.valid;
-				pageTable[i].readOnly = entry.readOnly;
-				pageTable[i].used = entry.used;
-				pageTable[i].dirty = entry.dirty;			
-			}
+		int vpn = entry.vpn;
+		if(VMKernel.lookupFrame(this, vpn) == entry.ppn){
+			//pageTable[vpn].valid = entry.valid;
+			pageTable[vpn].readOnly = entry.readOnly;
+			pageTable[vpn].used = entry.used;
+			pageTable[vpn].dirty = entry.dirty;			
 		}
 
 		// this.pageTableLock.release();
@@ -217,29 +311,474 @@ public class VMProcess extends UserProcess {
 	}
 
 	protected int pinVirtualPage(int vpn, boolean isUserWrite){
+		if(isValidPage(vpn) == false){
+			return -1;
+		}
+		if(isUserWrite && copyOnWrite[vpn]){
+			this.copyPage(vpn);
+		}
 		System.out.println("Process " + this.processID() + " is trying to pin vpn " + vpn);
-		//Machine.interrupt().disable();
-		//TLBLock.acquire();
-		this.handleTLE(vpn);
-		//TLBLock.acquire();
-		//Machine.interrupt().enable();
+		// with interrupts off nothing can evict the page between the fault
+		// and the pin, unless the fault itself blocks; then try again
+		boolean status = Machine.interrupt().disable();
+		TranslationEntry entry = this.handleTLE(vpn);
+		while(entry.valid == false){
+			entry = this.handleTLE(vpn);
+		}
 		System.out.println("Process " + this.processID() + " pinned vpn " + vpn);
-		VMKernel.pinPage(pageTable[vpn].ppn);
-		return super.pinVirtualPage(vpn,isUserWrite);
+		VMKernel.pinPage(entry.ppn);
+		Machine.interrupt().setStatus(status);
+		int ppn = super.pinVirtualPage(vpn,isUserWrite);
+		if(ppn == -1){
+			// a failed pin leaves nothing for the caller to unpin
+			VMKernel.unpinPage(entry.ppn);
+		}
+		return ppn;
 	}
 
 	protected void unpinVirtualPage(int vpn){
 		VMKernel.unpinPage(pageTable[vpn].ppn);
 	}
 
+	/*
+	 * Returns true if vpn is part of the address space: the program's own
+	 * pages or a page of a file mapping.
+	 */
+	private boolean isValidPage(int vpn){
+		if(vpn < 0 || vpn >= pageTable.length){
+			return false;
+		}
+		return vpn < numPages || mappings[vpn] != null;
+	}
+
+	/**
+	 * Handle a syscall, adding <tt>mmap()</tt>, <tt>munmap()</tt> and
+	 * <tt>fork()</tt> to the calls of <tt>UserProcess</tt>:
+	 *
+	 * <table>
+	 * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+	 * <tr><td>10</td><td><tt>void *mmap(int fd, int offset, int length);</tt></td></tr>
+	 * <tr><td>17</td><td><tt>int  munmap(void *address, int length);</tt></td></tr>
+	 * <tr><td>18</td><td><tt>int  fork();</tt></td></tr>
+	 * </table>
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallFork:
+			return handleFork();
+		case syscallMmap:
+			return handleMmap(a0, a1, a2);
+		case syscallMunmap:
+			return handleMunmap(a0, a1);
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+	/*
+	 * Starts a child running a copy of this process, which returns from the
+	 * same fork() with 0. Pages that have contents, in a frame or in swap,
+	 * are not copied but shared copy-on-write: each is made read-only in
+	 * both processes, and whichever writes it first gets its own copy.
+	 * Mapped files are shared through the file. Returns the child's process
+	 * ID, or -1.
+	 */
+	private int handleFork(){
+		VMProcess child = (VMProcess) newUserProcess();
+		if(child.copyHandles(this) == false){
+			child.closeHandles();
+			return -1;
+		}
+
+		Processor processor = Machine.processor();
+		child.forkRegisters = new int[Processor.numUserRegisters];
+		for(int i = 0; i < Processor.numUserRegisters; i++){
+			child.forkRegisters[i] = processor.readRegister(i);
+		}
+		// the child resumes after the syscall, as advancePC() would leave it
+		child.forkRegisters[Processor.regV0] = 0;
+		child.forkRegisters[Processor.regPC] = child.forkRegisters[Processor.regNextPC];
+		child.forkRegisters[Processor.regNextPC] += 4;
+
+		this.pageTableLock.acquire();
+		// the TLB may hold the only up-to-date dirty bits, and writable
+		// entries are about to become read-only
+		boolean status = Machine.interrupt().disable();
+		this.flushTLB();
+		Machine.interrupt().setStatus(status);
+
+		int size = pageTable.length;
+		child.numPages = numPages;
+		child.pageTable = new TranslationEntry[size];
+		child.coffSections = coffSections.clone();
+		child.swapPages = new int[size];
+		java.util.Arrays.fill(child.swapPages, -1);
+		child.copyOnWrite = new boolean[size];
+		child.sharedFrames = sharedFrames;
+		for(int vpn = 0; vpn < size; vpn++){
+			if(mappings[vpn] != null){
+				VMKernel.syncMappedPage(this, vpn);
+			}else if((pageTable[vpn].readOnly == false || copyOnWrite[vpn])
+					&& (swapPages[vpn] != -1 || VMKernel.lookupFrame(this, vpn) != -1)){
+				copyOnWrite[vpn] = true;
+				pageTable[vpn].readOnly = true;
+			}
+			child.pageTable[vpn] = new TranslationEntry(pageTable[vpn]);
+			child.pageTable[vpn].asid = child.processID();
+			child.pageTable[vpn].valid = false;
+			child.copyOnWrite[vpn] = copyOnWrite[vpn];
+			if(mappings[vpn] == null){
+				VMKernel.forkPage(this, child, vpn);
+			}
+		}
+		this.pageTableLock.release();
+
+		startChild(child, executableName);
+		Lib.debug(dbgVM, "Process " + this.processID() + " forked process " + child.processID());
+		return child.processID();
+	}
+
+	/*
+	 * Opens this new process's own handles on everything a parent being
+	 * forked has open: its executable, the files in its file table and its
+	 * mapped files. A copy starts at the position of the original but moves
+	 * on its own. Returns false if something could not be reopened.
+	 */
+	private boolean copyHandles(VMProcess parent){
+		executableName = parent.executableName;
+		OpenFile executable = ThreadedKernel.fileSystem.open(executableName, false);
+		if(executable == null){
+			return false;
+		}
+		try{
+			coff = new Coff(executable);
+		}catch(java.io.EOFException e){
+			executable.close();
+			return false;
+		}
+
+		for(int i = 0; i < maxFiles; i++){
+			OpenFile of = parent.fileTable[i];
+			// our own console handles, opened by the constructor, stand in
+			// for the parent's
+			if(of != null && of.getFileSystem() == null && fileTable[i] != null){
+				continue;
+			}
+			if(fileTable[i] != null){
+				fileTable[i].close();
+				fileTable[i] = null;
+			}
+			if(of != null && (fileTable[i] = reopen(of)) == null){
+				return false;
+			}
+		}
+
+		mappings = new Mapping[parent.mappings.length];
+		java.util.IdentityHashMap<Mapping, Mapping> copies = new java.util.IdentityHashMap<Mapping, Mapping>();
+		for(int vpn = 0; vpn < mappings.length; vpn++){
+			Mapping mapping = parent.mappings[vpn];
+			if(mapping == null){
+				continue;
+			}
+			Mapping copy = copies.get(mapping);
+			if(copy == null){
+				OpenFile file = reopen(mapping.file);
+				if(file == null){
+					return false;
+				}
+				copy = new Mapping(file, mapping.firstVPN, mapping.offset, mapping.end - mapping.offset);
+				copies.put(mapping, copy);
+			}
+			copy.numPages++;
+			mappings[vpn] = copy;
+		}
+		return true;
+	}
+
+	/* closes what copyHandles() opened, after it failed */
+	private void closeHandles(){
+		if(coff != null){
+			coff.close();
+		}
+		for(int i = 0; i < maxFiles; i++){
+			if(fileTable[i] != null){
+				fileTable[i].close();
+				fileTable[i] = null;
+			}
+		}
+		if(mappings != null){
+			for(int vpn = 0; vpn < mappings.length; vpn++){
+				if(mappings[vpn] != null && --mappings[vpn].numPages == 0){
+					mappings[vpn].file.close();
+				}
+			}
+		}
+	}
+
+	/* opens a second handle on a file, at the same position */
+	private static OpenFile reopen(OpenFile of){
+		OpenFile copy = of.getFileSystem().open(of.getName(), false);
+		if(copy != null){
+			copy.seek(of.tell());
+		}
+		return copy;
+	}
+
+	/**
+	 * Initialize the processor's registers. A forked process starts with
+	 * its parent's registers as they were at the <tt>fork()</tt>.
+	 */
+	public void initRegisters() {
+		if(forkRegisters == null){
+			super.initRegisters();
+			return;
+		}
+		for(int i = 0; i < Processor.numUserRegisters; i++){
+			Machine.processor().writeRegister(i, forkRegisters[i]);
+		}
+	}
+
+	/*
+	 * Maps length bytes of the file open on fileDescriptor, from the
+	 * page-aligned offset, at the first free run of pages above the stack.
+	 * Nothing is read until the pages fault. Returns the address of the
+	 * mapping, or -1.
+	 */
+	private int handleMmap(int fileDescriptor, int offset, int length){
+		if(fileDescriptor < 0 || fileDescriptor >= maxFiles || fileTable[fileDescriptor] == null){
+			return -1;
+		}
+		if(offset < 0 || offset % pageSize != 0 || length <= 0 || length > maxMappedPages*pageSize){
+			return -1;
+		}
+
+		// the mapping has its own handle, so it outlives close()
+		OpenFile file = ThreadedKernel.fileSystem.open(fileTable[fileDescriptor].getName(), false);
+		if(file == null){
+			return -1;
+		}
+
+		int count = (length + pageSize - 1) / pageSize;
+		this.pageTableLock.acquire();
+		int first = numPages;
+		int run = 0;
+		while(run < count && first + run < pageTable.length){
+			if(mappings[first + run] == null){
+				run++;
+			}else{
+				first += run + 1;
+				run = 0;
+			}
+		}
+		if(first + count - numPages > maxMappedPages){
+			this.pageTableLock.release();
+			file.close();
+			return -1;
+		}
+		if(first + count > pageTable.length){
+			growAddressSpace(first + count);
+		}
+
+		Mapping mapping = new Mapping(file, first, offset, length);
+		mapping.numPages = count;
+		for(int vpn = first; vpn < first + count; vpn++){
+			mappings[vpn] = mapping;
+		}
+		this.pageTableLock.release();
+
+		Lib.debug(dbgVM, "Process " + this.processID() + " mapped " + file.getName()
+				+ " at vpn " + first + " (" + count + " pages)");
+		return first*pageSize;
+	}
+
+	/*
+	 * Unmaps every mapped page in the page-aligned range, writing dirty ones
+	 * back to their files. Pages of the range that are not mapped are left
+	 * alone. Returns 0, or -1 if the range is malformed.
+	 */
+	private int handleMunmap(int address, int length){
+		if(address < 0 || address % pageSize != 0 || length <= 0){
+			return -1;
+		}
+
+		this.pageTableLock.acquire();
+		int first = Math.max(address / pageSize, numPages);
+		int end = Math.min(address / pageSize + (length + pageSize - 1) / pageSize, pageTable.length);
+		for(int vpn = first; vpn < end; vpn++){
+			if(mappings[vpn] != null){
+				this.unmapPage(vpn);
+			}
+		}
+		this.pageTableLock.release();
+		return 0;
+	}
+
+	/*
+	 * Removes one page from its mapping, closing the file with the last
+	 * page. The caller holds pageTableLock.
+	 */
+	private void unmapPage(int vpn){
+		Mapping mapping = mappings[vpn];
+		VMKernel.releaseMappedPage(this, vpn);
+		mappings[vpn] = null;
+		pageTable[vpn].valid = false;
+		pageTable[vpn].used = false;
+		pageTable[vpn].dirty = false;
+		if(--mapping.numPages == 0){
+			mapping.file.close();
+		}
+	}
+
+	/* extends the page table and its per-page arrays to size pages */
+	private void growAddressSpace(int size){
+		int old = pageTable.length;
+		size = Math.max(size, Math.min(2*old, numPages + maxMappedPages));
+		pageTable = java.util.Arrays.copyOf(pageTable, size);
+		coffSections = java.util.Arrays.copyOf(coffSections, size);
+		swapPages = java.util.Arrays.copyOf(swapPages, size);
+		mappings = java.util.Arrays.copyOf(mappings, size);
+		copyOnWrite = java.util.Arrays.copyOf(copyOnWrite, size);
+		for(int vpn = old; vpn < size; vpn++){
+			pageTable[vpn] = new TranslationEntry(vpn, 0, false, false, false, false);
+			pageTable[vpn].asid = this.processID();
+			coffSections[vpn] = -1;
+			swapPages[vpn] = -1;
+		}
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified virtual page is backed by a
+	 * mapped file rather than by swap.
+	 */
+	boolean isMapped(int vpn){
+		return vpn < mappings.length && mappings[vpn] != null;
+	}
+
+	/**
+	 * Fill a physical page with the file contents of a mapped virtual page.
+	 * Whatever lies past the end of the file or of the mapping reads as
+	 * zeros.
+	 */
+	void readMappedPage(int vpn, int ppn){
+		Mapping mapping = mappings[vpn];
+		byte[] memory = Machine.processor().getMemory();
+		int position = mapping.position(vpn);
+		int amount = mapping.file.read(position, memory, ppn*pageSize,
+				Math.min(pageSize, mapping.end - position));
+		java.util.Arrays.fill(memory, ppn*pageSize + Math.max(amount, 0), (ppn+1)*pageSize, (byte) 0);
+	}
+
+	/**
+	 * Write a physical page holding a mapped virtual page back to the file.
+	 * The file is not extended: bytes past its end, or past the end of the
+	 * mapping, are dropped.
+	 */
+	void writeMappedPage(int vpn, int ppn){
+		Mapping mapping = mappings[vpn];
+		int position = mapping.position(vpn);
+		int amount = Math.min(pageSize, Math.min(mapping.end, mapping.file.length()) - position);
+		if(amount > 0){
+			mapping.file.write(position, Machine.processor().getMemory(), ppn*pageSize, amount);
+		}
+	}
+
 	public Coff getCoff(){
 		return this.coff;
 	}
 
+	/**
+	 * Return the index of the COFF section that the specified virtual page
+	 * is loaded from, or -1 if it is a stack, argument or uninitialized data
+	 * page, or part of a file mapping.
+	 */
+	public int getCoffSection(int vpn){
+		return coffSections[vpn];
+	}
+
+	/**
+	 * Return the swap slot holding the specified virtual page, or -1 if the
+	 * page has never been written to swap.
+	 */
+	public int getSwapPage(int vpn){
+		return swapPages[vpn];
+	}
+
+	void setSwapPage(int vpn, int spn){
+		swapPages[vpn] = spn;
+	}
+
+	TranslationEntry getEntry(int vpn){
+		return pageTable[vpn];
+	}
+
+	int getNumPages(){
+		return numPages;
+	}
+
 	private Lock pageTableLock;
 
+	/* section index for each vpn, filled in by loadSections(); -1 for
+	   pages that start out zeroed */
+	private int[] coffSections;
+
+	/* swap slot for each vpn, or -1; a slot outlives swap-in so clean
+	   pages can be dropped */
+	private int[] swapPages;
+
+	/* the file mapping backing each vpn, or null; vpns below numPages are
+	   never mapped */
+	private Mapping[] mappings;
+
+	/* length bytes of a file from offset, mapped from firstVPN up */
+	private static class Mapping {
+		Mapping(OpenFile file, int firstVPN, int offset, int length){
+			this.file = file;
+			this.firstVPN = firstVPN;
+			this.offset = offset;
+			this.end = offset + length;
+		}
+
+		/* the file position of the start of a page */
+		int position(int vpn){
+			return offset + (vpn - firstVPN)*pageSize;
+		}
+
+		OpenFile file;
+		int firstVPN;
+		int offset;
+		int end;
+		/* pages still mapped; the file is closed when none are left */
+		int numPages;
+	}
+
+	/* true for each vpn shared copy-on-write since a fork; its entry is
+	   read-only until the page is copied */
+	private boolean[] copyOnWrite;
+
+	/* for a forked process, the registers it starts with */
+	private int[] forkRegisters;
+
+	private String executableName;
+
+	/* the shared text cache for our executable, or null */
+	int[] sharedFrames;
+
+	/* the vpn that would continue the last run of faults */
+	int nextSequentialVpn = -1;
+
+	/** Scratch entry for reading the TLB without allocating. */
+	private TranslationEntry tlbEntry = new TranslationEntry();
+
 	public static final Lock TLBLock = new Lock();	
 
+	/* the most pages a process may have mapped above its stack */
+	private static final int maxMappedPages = 1024;
+
+	private static final int
+		syscallMmap = 10,
+		syscallMunmap = 17,
+		syscallFork = 18;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
@@ -0,0 +1,101 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Like the clock, but each frame remembers when it
+ * was last seen referenced, and only frames idle for longer than the
+ * working set window (<tt>WSClockPolicy.window</tt> ticks) are preferred
+ * victims. Among those, clean frames go first since they cost no write.
+ * If every frame is in some working set, the least recently referenced
+ * frame is taken.
+ */
+public class WSClockPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+	}
+
+	public void initialize(int numFrames) {
+		resident = new boolean[numFrames];
+		lastUse = new long[numFrames];
+		window = Config.getInteger("WSClockPolicy.window", 10000);
+		Lib.assertTrue(window > 0);
+	}
+
+	public void pageIn(int ppn, TEKey page) {
+		resident[ppn] = true;
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public void referenced(int ppn) {
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public void remove(int ppn) {
+		resident[ppn] = false;
+	}
+
+	public int selectVictim() {
+		long now = Machine.timer().getTime();
+		int oldDirty = -1, oldest = -1;
+
+		for (int i = 0; i < resident.length; i++) {
+			int ppn = clockHand;
+			clockHand = (clockHand + 1) % resident.length;
+
+			if (!resident[ppn] || VMKernel.isPinned(ppn))
+				continue;
+
+			if (VMKernel.testAndClearUsed(ppn)) {
+				lastUse[ppn] = now;
+				continue;
+			}
+
+			if (now - lastUse[ppn] > window) {
+				if (!VMKernel.isDirty(ppn)) {
+					outsideWorkingSet++;
+					return evict(ppn);
+				}
+				if (oldDirty == -1)
+					oldDirty = ppn;
+			}
+
+			if (oldest == -1 || lastUse[ppn] < lastUse[oldest])
+				oldest = ppn;
+		}
+
+		// a full sweep found no idle clean frame
+		if (oldDirty != -1) {
+			outsideWorkingSet++;
+			dirtyEvictions++;
+			return evict(oldDirty);
+		}
+		if (oldest != -1) {
+			if (VMKernel.isDirty(oldest))
+				dirtyEvictions++;
+			return evict(oldest);
+		}
+		return -1;
+	}
+
+	private int evict(int ppn) {
+		resident[ppn] = false;
+		evictions++;
+		return ppn;
+	}
+
+	public String getStatistics() {
+		return "WSClock: evictions " + evictions + " (" + outsideWorkingSet
+				+ " outside the working set, " + dirtyEvictions + " dirty)";
+	}
+
+	private boolean[] resident;
+	private long[] lastUse;
+	private long window;
+	private int clockHand = 0;
+	private int evictions = 0;
+	private int outsideWorkingSet = 0;
+	private int dirtyEvictions = 0;
+}